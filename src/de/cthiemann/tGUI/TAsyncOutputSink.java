@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of TransparentGUI, a GUI library for Processing.
+ *
+ * TransparentGUI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransparentGUI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransparentGUI.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cthiemann.tGUI;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/** Output sink that hands text to a background writer thread, so printing never blocks the caller.  The
+ * writer collects queued text into batches and writes each batch with a single channel write.  If the
+ * output cannot keep up and the queue is full, text is dropped according to the policy and the number of
+ * dropped pieces is reported once the writer catches up. */
+public class TAsyncOutputSink implements TConsole.OutputSink, Runnable {
+  public static final int DROP_NEWEST = 0;  // text printed while the queue is full is dropped
+  public static final int DROP_OLDEST = 1;  // the oldest queued text is dropped to make room
+  public static final int BATCH_SIZE = 8192;  // (approximate) maximum number of characters per write
+
+  protected OutputStream out;
+  protected WritableByteChannel channel;
+  protected Charset charset = Charset.defaultCharset();
+  protected ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>();
+  protected AtomicInteger queued = new AtomicInteger(0);  // number of strings in queue
+  protected AtomicInteger dropped = new AtomicInteger(0);  // number of strings dropped since the last report
+  protected int capacity;
+  protected int policy;
+  protected Thread thread;
+  protected volatile boolean closed = false;
+
+  protected static TAsyncOutputSink stdout = null;
+
+  /** Returns the shared sink writing to System.out (which is used by TConsole by default). */
+  public static synchronized TAsyncOutputSink getStdout() {
+    if (stdout == null) {
+      stdout = new TAsyncOutputSink(System.out);
+      Runtime.getRuntime().addShutdownHook(new Thread() { public void run() { stdout.close(); } });  // don't lose the last lines
+    }
+    return stdout;
+  }
+
+  public TAsyncOutputSink(OutputStream out) { this(out, 4096, DROP_OLDEST); }
+  public TAsyncOutputSink(OutputStream out, int capacity, int policy) {
+    this.out = out;
+    channel = Channels.newChannel(out);
+    this.capacity = Math.max(1, capacity);
+    this.policy = policy;
+    thread = new Thread(this, "TConsole output");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public int getCapacity() { return capacity; }
+  public void setCapacity(int capacity) { this.capacity = Math.max(1, capacity); }
+  public int getPolicy() { return policy; }
+  public void setPolicy(int policy) { this.policy = policy; }
+
+  public void print(String str) {
+    if (closed) return;
+    if (queued.incrementAndGet() > capacity) {
+      if (policy == DROP_NEWEST) { queued.decrementAndGet(); dropped.incrementAndGet(); return; }
+      if (queue.poll() != null) { queued.decrementAndGet(); dropped.incrementAndGet(); }
+    }
+    queue.offer(str);
+    LockSupport.unpark(thread);
+  }
+
+  /** Stops accepting text and waits (up to one second) for the writer to write what is still queued. */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(thread);
+    try { thread.join(1000); } catch (InterruptedException e) { /* give up */ }
+  }
+
+  public void run() {
+    StringBuilder sb = new StringBuilder(BATCH_SIZE);
+    while (true) {
+      String str;
+      while ((sb.length() < BATCH_SIZE) && ((str = queue.poll()) != null)) {
+        queued.decrementAndGet();
+        sb.append(str);
+      }
+      int n = dropped.getAndSet(0);
+      if (n > 0) sb.insert(0, "\n[" + n + " console output" + ((n == 1) ? "" : "s") + " dropped]\n");
+      if (sb.length() > 0) {
+        try {
+          ByteBuffer buf = charset.encode(CharBuffer.wrap(sb));
+          while (buf.hasRemaining()) channel.write(buf);
+          out.flush();
+        } catch (IOException e) { closed = true; return; }  // nowhere to write to anymore
+        sb.setLength(0);
+      } else if (closed)
+        return;
+      else
+        LockSupport.park();  // woken up by print() and close()
+    }
+  }
+}
@@ -51,7 +51,7 @@ public class TBorderLayout extends Object implements TLayoutManager {
     for (int i = 0; i < components.length; i++) {
       if (!components[i].isVisible()) continue;
       layoutHint = (String)components[i].getLayoutHint();
-      TComponent.Dimension d = components[i].getPreferredSize();
+      TComponent.Dimension d = components[i].getCachedPreferredSize();
       if (((layoutHint == null) || (CENTER.equals(layoutHint))) && (center == null)) {
         center = components[i];
       } else if (NORTH.equals(layoutHint)) {
@@ -85,7 +85,7 @@ public class TBorderLayout extends Object implements TLayoutManager {
       }
     }
     if (center != null) {
-      TComponent.Dimension d = center.getPreferredSize();
+      TComponent.Dimension d = new TComponent.Dimension(center.getCachedPreferredSize());
       d.width += PApplet.max(s.left, center.getMarginLeft());
       d.width += PApplet.max(s.right, center.getMarginRight());
       d.height += PApplet.max(s.top, center.getMarginTop());
@@ -119,7 +119,7 @@ public class TBorderLayout extends Object implements TLayoutManager {
     TComponent center = null;
     for (int i = 0; i < components.length; i++) {
       if (!components[i].isVisible()) continue;
-      TComponent.Dimension d = components[i].getMinimumSize();
+      TComponent.Dimension d = components[i].getCachedMinimumSize();
       if (((components[i].getLayoutHint() == null) || (CENTER.equals(components[i].getLayoutHint()))) && (center == null))
         center = components[i];
       else if ((NORTH.equals(components[i].getLayoutHint())) || (SOUTH.equals(components[i].getLayoutHint()))) {
@@ -133,7 +133,7 @@ public class TBorderLayout extends Object implements TLayoutManager {
       }
     }
     if (center != null) {
-      TComponent.Dimension d = center.getMinimumSize();
+      TComponent.Dimension d = center.getCachedMinimumSize();
       addwidth = PApplet.max(addwidth, d.width);
       addheight = PApplet.max(addheight, d.height);
     }
@@ -150,7 +150,7 @@ public class TBorderLayout extends Object implements TLayoutManager {
     TComponent center = null;
     for (int i = 0; i < components.length; i++) {
       if (!components[i].isVisible()) continue;
-      TComponent.Dimension d = components[i].getPreferredSize();
+      TComponent.Dimension d = components[i].getCachedPreferredSize();
       if (((components[i].getLayoutHint() == null) || (CENTER.equals(components[i].getLayoutHint()))) && (center == null))
         center = components[i];
       else if (NORTH.equals(components[i].getLayoutHint())) {
@@ -190,7 +190,7 @@ public class TBorderLayout extends Object implements TLayoutManager {
       float cbottom = bottom - PApplet.max(s.bottom, center.getMarginBottom());
       float cwidth = cright - cleft, cheight = cbottom - ctop;
       if (!stretchCenter) {
-        TComponent.Dimension d = center.getPreferredSize();
+        TComponent.Dimension d = center.getCachedPreferredSize();
         cleft += (cwidth - d.width)/2;
         ctop += (cheight - d.height)/2;
         cwidth = d.width;
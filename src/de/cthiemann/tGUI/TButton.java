@@ -23,6 +23,7 @@ import processing.core.PApplet;
 import processing.core.PFont;
 import processing.core.PGraphics;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
@@ -32,6 +33,7 @@ public class TButton extends TLabel {
   protected String command = null;
   protected int hotKeyCode = 0;
   protected int hotKeyMods = 0;
+  protected AtomicInteger pendingActions = new AtomicInteger();  // asynchronously dispatched action events that have not completed yet
 
   public TButton(TransparentGUI gui) { this(gui, ""); }
   public TButton(TransparentGUI gui, String s) {
@@ -42,12 +44,15 @@ public class TButton extends TLabel {
 
   public void setHotKey(int c) { setHotKey(c, 0); }
   public void setHotKey(int c, int mods) {
-    gui.unregisterFromKeyEvents(this);
+    if (attached && (hotKeyCode > 0)) gui.unregisterHotKey(this, hotKeyCode, hotKeyMods);
     hotKeyCode = c;
     hotKeyMods = mods;
-    if (c > 0) gui.registerForKeyEvents(this);
+    if (attached && (hotKeyCode > 0)) gui.registerHotKey(this, hotKeyCode, hotKeyMods);
   }
 
+  public void addNotify() { super.addNotify(); if (hotKeyCode > 0) gui.registerHotKey(this, hotKeyCode, hotKeyMods); }
+  public void removeNotify() { if (hotKeyCode > 0) gui.unregisterHotKey(this, hotKeyCode, hotKeyMods); super.removeNotify(); }
+
   public void handleKeyEvent(KeyEvent e) {
     super.handleKeyEvent(e);
     if (e.isConsumed() || (e.getID() != KeyEvent.KEY_PRESSED)) return;
@@ -57,8 +62,23 @@ public class TButton extends TLabel {
     }
   }
 
+  /** Returns true while an action event fired by this button is being handled on an executor (see
+   * setActionEventExecutor).  A busy button looks and acts disabled. */
+  public boolean isBusy() { return pendingActions.get() > 0; }
+  public boolean isEnabled() { return super.isEnabled() && (pendingActions.get() == 0); }
+
+  protected void handleActionStarted(ActionEvent event) {
+    super.handleActionStarted(event);
+    if (pendingActions.getAndIncrement() == 0) { gui.stateVersion++; repaint(); }
+  }
+  protected void handleActionCompleted(ActionEvent event, Throwable error) {
+    if (pendingActions.decrementAndGet() == 0) { gui.stateVersion++; repaint(); }
+    super.handleActionCompleted(event, error);
+  }
+
   public void handleMouseClicked() {
     gui.fireActionEvent(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, getActionCommand()));
     bgAlpha = 1.0f;  // give instant visual feedback (also when the hot key was hit)
+    repaint();
   }
 }
\ No newline at end of file
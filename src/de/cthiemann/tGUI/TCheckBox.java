@@ -20,8 +20,8 @@
 
 package de.cthiemann.tGUI;
 import processing.core.PApplet;
+import processing.core.PFont;
 import processing.core.PGraphics;
-import java.awt.Color;
 import java.awt.event.MouseEvent;
 
 public class TCheckBox extends TToggleButton {
@@ -32,47 +32,49 @@ public class TCheckBox extends TToggleButton {
 
   public TComponent.Dimension getPreferredSize() {
     TComponent.Dimension d = super.getPreferredSize();
-    d.width += gui.app.g.textDescent()/2 + 5 + gui.app.g.textAscent() - 15;
+    d.width += gui.textMetrics.descent(getFont())/2 + 5 + gui.textMetrics.ascent(getFont()) - 15;
     return d;
   }
 
   public TComponent.Dimension getMinimumSize() {
     TComponent.Dimension d = super.getMinimumSize();
-    d.width += gui.app.g.textDescent()/2 + 5 + gui.app.g.textAscent();
+    d.width += gui.textMetrics.descent(getFont())/2 + 5 + gui.textMetrics.ascent(getFont());
     return d;
   }
 
-  public Color getForegroundColor() { return gui.style.getForegroundColor(this); }  // FIXME
+  public int getForeground() { return gui.style.getForeground(this); }  // FIXME
 
   // FIXME: this needs to be reworked
   public void draw(PGraphics g) {
     // draw label
-    g.textFont(getFont());
-    float boxpad = g.textAscent() + g.textWidth("  ");
+    TRenderState rs = gui.renderState(g);
+    PFont fn = getFont();
+    float ascent = gui.textMetrics.ascent(fn), descent = gui.textMetrics.descent(fn);
+    float boxpad = ascent + gui.textMetrics.width(fn, "  ");
     padding.left += boxpad;
     super.draw(g);
     padding.left -= boxpad;
     // draw checkbox
     float x = bounds.x + padding.left;
-    float y = bounds.y + bounds.height - padding.bottom - g.textDescent();
-    float h = g.textAscent() + g.textDescent();
+    float y = bounds.y + bounds.height - padding.bottom - descent;
+    float h = ascent + descent;
     if (bounds.height > h) y -= (bounds.height - h)/2;
-    g.stroke(getForeground());
-    g.noFill();
+    rs.stroke(getForeground());
+    rs.noFill();
     if (group == null) {  // draw a rectangular check box with a cross
-      g.rectMode(g.CORNER);
-      g.rect(x + 1, y - g.textAscent() + 2, g.textAscent() - 2, g.textAscent() - 2);
+      rs.rectMode(PGraphics.CORNER);
+      g.rect(x + 1, y - ascent + 2, ascent - 2, ascent - 2);
       if (selected) {
-        g.line(x + 3, y - g.textAscent() + 4, x + g.textAscent() - 3, y - 2);
-        g.line(x + 3, y - 2, x + g.textAscent() - 3, y - g.textAscent() + 4);
+        g.line(x + 3, y - ascent + 4, x + ascent - 3, y - 2);
+        g.line(x + 3, y - 2, x + ascent - 3, y - ascent + 4);
       }
     } else {  // draw a round box with a disc
-      float d = g.textAscent() - 3;
+      float d = ascent - 3;
       x += 2 + d/2;
       y = bounds.height/2 + 1;
       g.ellipse(x, y, d, d);
       if (selected) {
-        g.fill(getForeground());
+        rs.fill(getForeground());
         g.ellipse(x, y, d/3, d/3);
       }
     }
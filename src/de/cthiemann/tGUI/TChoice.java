@@ -52,19 +52,20 @@ public class TChoice extends TComponent {
   public static class StringRenderer extends Renderer {
     public String getString(Object o, boolean inMenu) { return o.toString(); }
     public TComponent.Dimension getPreferredSize(TChoice c, Object o, boolean inMenu) {
-      c.gui.app.g.textFont(c.getFont());
+      TTextMetrics tm = c.gui.textMetrics;
       return new TComponent.Dimension(
-        c.gui.app.g.textWidth(getString(o, inMenu)),
-        c.gui.app.g.textAscent() + 1.5f*c.gui.app.g.textDescent());
+        tm.width(c.getFont(), getString(o, inMenu)),
+        tm.ascent(c.getFont()) + 1.5f*tm.descent(c.getFont()));
     }
     public void draw(TChoice c, PGraphics g, Object o, TComponent.Rectangle bounds, boolean inMenu) {
-      g.noStroke();
-      g.textFont(c.getFont());
-      g.fill(c.getForeground());
-      g.textAlign(g.LEFT, g.BASELINE);
+      TRenderState rs = c.gui.renderState(g);
+      rs.noStroke();
+      rs.textFont(c.getFont());
+      rs.fill(c.getForeground());
+      rs.textAlign(PGraphics.LEFT, PGraphics.BASELINE);
       float x = bounds.x;
-      float y = bounds.y + bounds.height - g.textDescent();
-      float h = g.textAscent() + g.textDescent();
+      float y = bounds.y + bounds.height - c.gui.textMetrics.descent(c.getFont());
+      float h = c.gui.textMetrics.height(c.getFont());
       if (bounds.height > h) y -= (bounds.height - h)/2;
       g.text(getString(o, inMenu), x, y);
     }
@@ -92,10 +93,11 @@ public class TChoice extends TComponent {
     protected class NullItem extends Item {
       public NullItem(TransparentGUI gui) { super(gui, strNone); renderer = new StringRenderer(); }
       public void draw(PGraphics p) {
-        java.awt.Color c = TChoice.this.isForegroundSet() ? TChoice.this.getForegroundColor() : null;;
-        TChoice.this.setForeground((getForeground() & 0x00ffffff) | (127 << 24));
+        // temporarily change the TChoice's foreground color (without triggering repaints)
+        int c = TChoice.this.fg; boolean cSet = TChoice.this.fgSet;
+        TChoice.this.fg = (getForeground() & 0x00ffffff) | (127 << 24); TChoice.this.fgSet = true;
         super.draw(p);
-        TChoice.this.setForegroundColor(c);
+        TChoice.this.fg = c; TChoice.this.fgSet = cSet;
       }
     }
 
@@ -180,14 +182,29 @@ public class TChoice extends TComponent {
     if (selected == index) return false;
     selected = index;
     if (items.isEmpty()) selected = -1;
-    if (compact) invalidate();
+    if (compact) invalidate(); else repaint();
     return true;
   }
+  /** Listener which is notified whenever the user selects an item (index is -1 for "none"). */
+  public static interface SelectionListener {
+    public void selectionChanged(TChoice choice, int index, Object item);
+  }
+  protected SelectionListener[] selectionListeners = new SelectionListener[0];
+
+  public void addSelectionListener(SelectionListener l) { selectionListeners = addListener(selectionListeners, l); }
+  public void removeSelectionListener(SelectionListener l) { selectionListeners = removeListener(selectionListeners, l); }
+
   protected void selectAndNotify(int index) {
     if (select(index)) {
-      gui.fireActionEvent(new ActionEvent(this, ActionEvent.ACTION_PERFORMED,
-        actionCmdPrefix + ((selected == -1) ? "@@none@@" : renderer.getActionCommand(items.get(selected)))));
+      SelectionListener[] ls = selectionListeners;
+      for (int i = 0; i < ls.length; i++)
+        ls[i].selectionChanged(this, selected, (selected == -1) ? null : items.get(selected));
+      if (getActionEventTarget() != null)
+        gui.fireActionEvent(new ActionEvent(this, ActionEvent.ACTION_PERFORMED,
+          actionCmdPrefix + ((selected == -1) ? "@@none@@" : renderer.getActionCommand(items.get(selected)))));
+      else gui.actionEvent = null;  // nobody is listening, so the event is not created
       bgAlpha = 1.f;  // give visual feedback of the action
+      repaint();
     }
   }
 
@@ -199,10 +216,9 @@ public class TChoice extends TComponent {
         d.width = PApplet.max(d.width, renderer.getPreferredSize(this, items.get(i), false).width);
     // ensure the empty/no-selection string can be displayed
     if ((selected == -1) || !compact) {
-      gui.app.g.textFont(getFont());
       d.width = PApplet.max(d.width,
-        gui.app.g.textWidth((items.size() == 0) ? strEmpty : (allowNone ? strNone : strNoSelection)));
-      d.height = PApplet.max(d.height, gui.app.g.textAscent() + 1.5f*gui.app.g.textDescent());
+        gui.textMetrics.width(getFont(), (items.size() == 0) ? strEmpty : (allowNone ? strNone : strNoSelection)));
+      d.height = PApplet.max(d.height, gui.textMetrics.ascent(getFont()) + 1.5f*gui.textMetrics.descent(getFont()));
     }
     return d;
   }
@@ -210,13 +226,39 @@ public class TChoice extends TComponent {
   public void validate() { super.validate(); obounds = getBounds();
     obounds.x += padding.left; obounds.y += padding.top;
     obounds.width -= padding.left + padding.right; obounds.height -= padding.top + padding.bottom; }
-  public void invalidate() { super.invalidate(); gui.remove(menu); menu.invalidate(); }
+  public void invalidate() {
+    super.invalidate();
+    if (menu == null) return;
+    if (menu.getParent() != null) gui.remove(menu);  // close the menu if it is open
+    menu.invalidate();
+  }
   public void invalidateMenu() { menu.invalidate(); }
 
-  public void setHotKeyChar(char c) { gui.unregisterFromKeyEvents(this); hotKeyCharCycle = c;
-    if ((hotKeyCharCycle > 0) || (hotKeyCharItems != null)) gui.registerForKeyEvents(this); }
-  public void setShortcutChars(char[] c) { gui.unregisterFromKeyEvents(this); hotKeyCharItems = c;
-    if ((hotKeyCharCycle > 0) || (hotKeyCharItems != null)) gui.registerForKeyEvents(this); }
+  public void setHotKeyChar(char c) {
+    if (attached) unregisterHotKeyChars();
+    hotKeyCharCycle = c;
+    if (attached) registerHotKeyChars();
+  }
+  public void setShortcutChars(char[] c) {
+    if (attached) unregisterHotKeyChars();
+    hotKeyCharItems = (c != null) ? c.clone() : null;  // copy, so the index cannot go stale behind our back
+    if (attached) registerHotKeyChars();
+  }
+  protected void registerHotKeyChars() {
+    if (hotKeyCharCycle > 0) gui.registerHotKeyChar(this, hotKeyCharCycle);
+    if (hotKeyCharItems != null)
+      for (int i = 0; i < hotKeyCharItems.length; i++)
+        gui.registerHotKeyChar(this, hotKeyCharItems[i]);
+  }
+  protected void unregisterHotKeyChars() {
+    if (hotKeyCharCycle > 0) gui.unregisterHotKeyChar(this, hotKeyCharCycle);
+    if (hotKeyCharItems != null)
+      for (int i = 0; i < hotKeyCharItems.length; i++)
+        gui.unregisterHotKeyChar(this, hotKeyCharItems[i]);
+  }
+
+  public void addNotify() { super.addNotify(); registerHotKeyChars(); }
+  public void removeNotify() { unregisterHotKeyChars(); super.removeNotify(); }
 
   public void handleKeyEvent(KeyEvent e) {
     super.handleKeyEvent(e);
@@ -236,12 +278,13 @@ public class TChoice extends TComponent {
     if (selected > -1)
       renderer.draw(this, g, items.get(selected), obounds, false);
     else {
-      g.noStroke();
-      g.textFont(getFont());
-      g.fill(getForeground(), 127);
-      g.textAlign(g.LEFT, g.BASELINE);
-      float y = bounds.y + bounds.height - g.textDescent();
-      float h = g.textAscent() + g.textDescent();
+      TRenderState rs = gui.renderState(g);
+      rs.noStroke();
+      rs.textFont(getFont());
+      rs.fill(getForeground(), 127);
+      rs.textAlign(PGraphics.LEFT, PGraphics.BASELINE);
+      float y = bounds.y + bounds.height - gui.textMetrics.descent(getFont());
+      float h = gui.textMetrics.height(getFont());
       if (bounds.height > h) y -= (bounds.height - h)/2;
       g.text(items.isEmpty() ? strEmpty : (allowNone ? strNone : strNoSelection),
         bounds.x + padding.left, y);
@@ -29,29 +29,36 @@ public class TCompactGroupLayout extends Object implements TLayoutManager {
   public TCompactGroupLayout() { this(0); }
   public TCompactGroupLayout(float addPadding) { this.addPadding = addPadding; }
 
+  protected TContainer styledTarget = null;  // target, gui.stateVersion and addPadding when styleComponents last ran
+  protected int styledVersion = -1;
+  protected float styledPadding = Float.NaN;
+
   protected void styleComponents(TContainer target) {
     // do not call setMargin, setPadding etc here, because they will re-invalidate its component's layout
+    // (the spacing objects are owned by each component, so they are modified in place)
+    target.setBackground(target.gui.style.getBackgroundForCompactGroups());
+    // which components are first and last only changes when children are added, removed, shown or hidden
+    if ((target == styledTarget) && (target.gui.stateVersion == styledVersion) && (addPadding == styledPadding)) return;
+    styledTarget = target; styledVersion = target.gui.stateVersion; styledPadding = addPadding;
     float r = 8;
-    target.padding = new TComponent.Spacing(0);
-    target.setBackgroundColor(target.gui.style.getBackgroundColorForCompactGroups());
+    target.padding.set(0, 0, 0, 0);
     TComponent first = null, last = null;
+    for (int i = 0; i < target.getComponentCount(); i++)
+      if (target.getComponent(i).isVisible()) { if (first == null) first = target.getComponent(i); last = target.getComponent(i); }
+    if (first == null) return;  // this container has no visible components
     for (int i = 0; i < target.getComponentCount(); i++) {
       TComponent comp = target.getComponent(i);
       if (!comp.isVisible()) continue;
-      if (first == null) first = comp;
-      comp.margin = new TComponent.Spacing(0);
-      comp.padding = new TComponent.Spacing(addPadding, 5);
-      comp.borderRadius = new TComponent.BorderRadius(0);
-      last = target.getComponent(i);
+      float left = (comp == first) ? 10 : 5, right = (comp == last) ? 10 : 5;
+      TComponent.Spacing p = comp.padding;
+      if ((comp.margin.get() != 0) || (p.top != addPadding) || (p.right != right) || (p.bottom != addPadding) || (p.left != left)) {
+        comp.margin.set(0, 0, 0, 0);
+        p.set(addPadding, right, addPadding, left);
+        comp.clearSizeCache();  // only if the padding changed, so the children's sizes stay memoized otherwise
+      }
+      comp.borderRadius.set((comp == first) ? r : 0, (comp == last) ? r : 0, (comp == last) ? r : 0, (comp == first) ? r : 0);
     }
-    if (first == null) return;  // this container has no visible components
-    first.padding.left += 5;
-    first.borderRadius.topleft = r;
-    first.borderRadius.bottomleft = r;
-    last.padding.right += 5;
-    last.borderRadius.topright = r;
-    last.borderRadius.bottomright = r;
-    target.borderRadius = new TComponent.BorderRadius(5);
+    target.borderRadius.set(5, 5, 5, 5);
   }
 
   public TComponent.Dimension preferredLayoutSize(TContainer target) {
@@ -63,7 +70,7 @@ public class TCompactGroupLayout extends Object implements TLayoutManager {
     float width = 0, height = 0;
     for (int i = 0; i < target.getComponentCount(); i++) {
       if (!target.getComponent(i).isVisible()) continue;
-      TComponent.Dimension d = target.getComponent(i).getPreferredSize();
+      TComponent.Dimension d = target.getComponent(i).getCachedPreferredSize();
       width += d.width;
       height = PApplet.max(height, d.height);
     }
@@ -74,15 +81,16 @@ public class TCompactGroupLayout extends Object implements TLayoutManager {
     return new TComponent.Dimension(Integer.MAX_VALUE, Integer.MAX_VALUE); }
 
   public void layoutContainer(TContainer target) {
+    styleComponents(target);  // (does nothing if the sizes were just queried)
     float left = 0, width, height = target.getHeight(), prefWidth = 0, stretchCount = 0;
     for (int i = 0; i < target.getComponentCount(); i++)
       if (target.getComponent(i).isVisible()) {
-        prefWidth += target.getComponent(i).getPreferredSize().width;
+        prefWidth += target.getComponent(i).getCachedPreferredSize().width;
         if (STRETCH.equals(target.getComponent(i).getLayoutHint())) stretchCount++; }
     float addToStretch = (stretchCount == 0) ? 0 : (target.getWidth() - prefWidth)/stretchCount;
     for (int i = 0; i < target.getComponentCount(); i++) {
       if (!target.getComponent(i).isVisible()) continue;
-      width = target.getComponent(i).getPreferredSize().width;
+      width = target.getComponent(i).getCachedPreferredSize().width;
       if (STRETCH.equals(target.getComponent(i).getLayoutHint())) width += addToStretch;
       target.getComponent(i).setBounds(left, 0, width, height);
       left += width;
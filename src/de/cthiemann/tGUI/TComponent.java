@@ -19,10 +19,17 @@
  */
 
 package de.cthiemann.tGUI;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import processing.core.PFont;
 import processing.core.PGraphics;
 import java.awt.Color;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 
@@ -52,6 +59,20 @@ public class TComponent extends Object {
     public boolean contains(float x, float y) {
       return (x >= this.x) && (x <= this.x + width) &&
              (y >= this.y) && (y <= this.y + height); }
+    public boolean intersects(Rectangle r) { return intersects(r.x, r.y, r.width, r.height); }
+    public boolean intersects(float x, float y, float w, float h) {
+      return (x < this.x + width) && (x + w > this.x) &&
+             (y < this.y + height) && (y + h > this.y); }
+    public boolean isEmpty() { return (width <= 0) || (height <= 0); }
+    public void set(float x, float y, float w, float h) { this.x = x; this.y = y; width = w; height = h; }
+    public void intersect(float x, float y, float w, float h) {
+      float x1 = Math.min(this.x + width, x + w), y1 = Math.min(this.y + height, y + h);
+      this.x = Math.max(this.x, x); this.y = Math.max(this.y, y);
+      width = x1 - this.x; height = y1 - this.y; }
+    public void add(Rectangle r) {  // grow to the bounding box of this and r
+      float x1 = Math.max(x + width, r.x + r.width), y1 = Math.max(y + height, r.y + r.height);
+      x = Math.min(x, r.x); y = Math.min(y, r.y);
+      width = x1 - x; height = y1 - y; }
    public String toString() { return getClass().getName() + "[x=" + x + ",y=" + y + ",width=" + width + ",height=" + height + "]"; };
   }
 
@@ -63,6 +84,7 @@ public class TComponent extends Object {
     public Spacing(float tb, float rl) { this(tb, rl, tb, rl); }
     public Spacing(float t, float rl, float b) { this(t, rl, b, rl); }
     public Spacing(float t, float r, float b, float l) { top = t; right = r; bottom = b; left = l; }
+    public void set(float t, float r, float b, float l) { top = t; right = r; bottom = b; left = l; }
     public float get() { return ((top == right) && (top == bottom) && (top == left)) ? top : -1; }
     public String toString() { return getClass().getName() + "[top=" + top + ",right=" + right + ",bottom=" + bottom + ",right=" + right + "]"; };
   }
@@ -73,10 +95,89 @@ public class TComponent extends Object {
     public BorderRadius(BorderRadius br) { this(br.topleft, br.topright, br.bottomright, br.bottomleft); }
     public BorderRadius(float r) { this(r, r, r, r); }
     public BorderRadius(float tl, float tr, float br, float bl) { topleft = tl; topright = tr; bottomright = br; bottomleft = bl; }
+    public void set(float tl, float tr, float br, float bl) { topleft = tl; topright = tr; bottomright = br; bottomleft = bl; }
     public float get() { return ((topleft == topright) && (topleft == bottomright) && (topleft == bottomleft)) ? topleft : -1; }
     public String toString() { return getClass().getName() + "[topleft=" + topleft + ",topright=" + topright + ",bottomright=" + bottomright + ",bottomleft=" + bottomleft + "]"; };
   }
 
+  /** Cache for the flattened outlines of rounded rectangles.  Outlines are stored relative to the
+   * rectangle's top-left corner as a list of x/y pairs, keyed by size and corner radii.  The least
+   * recently used outline is evicted once the cache holds more than MAX_SIZE outlines. */
+  protected static class RoundRectangleCache {
+    public static final int MAX_SIZE = 512;
+
+    protected static class Key {
+      float w, h, tl, tr, br, bl;
+      Key() {}
+      Key(Key k) { set(k.w, k.h, k.tl, k.tr, k.br, k.bl); }
+      void set(float w, float h, float tl, float tr, float br, float bl) {
+        this.w = w; this.h = h; this.tl = tl; this.tr = tr; this.br = br; this.bl = bl; }
+      public int hashCode() {
+        int hash = Float.floatToIntBits(w);
+        hash = 31*hash + Float.floatToIntBits(h);
+        hash = 31*hash + Float.floatToIntBits(tl);
+        hash = 31*hash + Float.floatToIntBits(tr);
+        hash = 31*hash + Float.floatToIntBits(br);
+        return 31*hash + Float.floatToIntBits(bl);
+      }
+      public boolean equals(Object o) {
+        if (!(o instanceof Key)) return false;
+        Key k = (Key)o;
+        return (w == k.w) && (h == k.h) && (tl == k.tl) && (tr == k.tr) && (br == k.br) && (bl == k.bl);
+      }
+    }
+
+    protected static final Key probe = new Key();  // re-used for look-ups to avoid allocation
+    @SuppressWarnings("serial")
+    protected static final LinkedHashMap<Key, float[]> cache = new LinkedHashMap<Key, float[]>(16, .75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Key, float[]> eldest) { return size() > MAX_SIZE; } };
+
+    public static synchronized float[] get(float w, float h, float tl, float tr, float br, float bl) {
+      probe.set(w, h, tl, tr, br, bl);
+      float[] v = cache.get(probe);
+      if (v == null) cache.put(new Key(probe), v = flatten(w, h, tl, tr, br, bl));
+      return v;
+    }
+
+    public static synchronized void clear() { cache.clear(); }
+
+    protected static final float FLATNESS = .02f;  // maximum distance (in pixels) between flattened corner and true arc
+
+    // number of segments per corner such that no chord is further than FLATNESS from the arc
+    // (a chord spanning the angle phi of an arc with radius r deviates from it by r*(1 - cos(phi/2)))
+    protected static int segments(float r) {
+      if (r <= 0) return 0;
+      if (r <= FLATNESS) return 1;
+      return Math.max(4, Math.min(64, (int)Math.ceil(Math.PI/(4*Math.acos(1 - FLATNESS/r))))); }
+
+    protected static float[] flatten(float w, float h, float tl, float tr, float br, float bl) {
+      float[] v = new float[2*(4 + segments(tl) + segments(tr) + segments(br) + segments(bl))];
+      int i = 0;
+      v[i++] = tl; v[i++] = 0;
+      v[i++] = w - tr; v[i++] = 0;
+      i = corner(v, i, w - tr, 0, w - tr*RNDCTRLFACTOR, 0, w, tr*RNDCTRLFACTOR, w, tr, segments(tr));
+      v[i++] = w; v[i++] = h - br;
+      i = corner(v, i, w, h - br, w, h - br*RNDCTRLFACTOR, w - br*RNDCTRLFACTOR, h, w - br, h, segments(br));
+      v[i++] = bl; v[i++] = h;
+      i = corner(v, i, bl, h, bl*RNDCTRLFACTOR, h, 0, h - bl*RNDCTRLFACTOR, 0, h - bl, segments(bl));
+      v[i++] = 0; v[i++] = tl;
+      i = corner(v, i, 0, tl, 0, tl*RNDCTRLFACTOR, tl*RNDCTRLFACTOR, 0, tl, 0, segments(tl));
+      return v;
+    }
+
+    // evaluates the cubic bezier curve at n equidistant parameter values (excluding the start point)
+    protected static int corner(float[] v, int i, float x0, float y0, float x1, float y1,
+                                float x2, float y2, float x3, float y3, int n) {
+      for (int k = 1; k <= n; k++) {
+        float t = (float)k/n, u = 1 - t;
+        float b0 = u*u*u, b1 = 3*u*u*t, b2 = 3*u*t*t, b3 = t*t*t;
+        v[i++] = b0*x0 + b1*x1 + b2*x2 + b3*x3;
+        v[i++] = b0*y0 + b1*y1 + b2*y2 + b3*y3;
+      }
+      return i;
+    }
+  }
+
   protected final static int MOUSE_NONE = 0;
   protected final static int MOUSE_OVER = 1;
   protected final static int MOUSE_DOWN = 2;
@@ -86,7 +187,12 @@ public class TComponent extends Object {
   protected boolean valid = false;
   protected boolean visible = true;
   protected boolean enabled = true;
+  protected boolean showing = false, effectivelyEnabled = true;  // inherited state (cached, see updateInheritedState)
+  protected int inheritedStateVersion = -1;  // value of gui.stateVersion when showing/effectivelyEnabled were computed
   protected boolean focusable = true;
+  protected boolean attached = false;  // true while this component is part of the GUI's component tree (see addNotify)
+  protected TDisplayList displayList = null;  // recorded draw operations of this component's segment (in display list mode)
+  protected boolean displayListValid = false;
 
   protected Object hint = null;
   protected Rectangle bounds = new Rectangle(0, 0, 0, 0);
@@ -96,63 +202,108 @@ public class TComponent extends Object {
   protected Spacing border = new Spacing(0);
   protected BorderRadius borderRadius = new BorderRadius(8, 8, 8, 8);
   protected PFont fn = null;
-  protected Color fg = null;
-  protected Color bg = null;
-  protected Color borderColor = null;
+  protected int fg = 0, bg = 0, borderColor = 0;  // packed ARGB colors (only valid if the respective flag below is set)
+  protected boolean fgSet = false, bgSet = false, borderColorSet = false;  // if false, colors are determined by gui.style
 
   protected int mouseState = MOUSE_NONE;
   protected boolean capturesMouse = true;
+  protected float screenX, screenY;  // location on screen (cached, see updateScreenLocation)
+  protected int screenLocationVersion = -1;  // value of gui.geometryVersion when screenX/screenY were computed
+  protected TComponent mouseCapturer = null;  // nearest ancestor-or-self with capturesMouse set (cached)
+  protected int mouseCapturerVersion = -1;  // value of gui.treeVersion when mouseCapturer was determined
   protected boolean clickable = false;
   protected float bgAlpha = 0.f, bgAlpha_target = 0.f;
+  protected Dimension cachedPreferredSize = null, cachedMinimumSize = null, cachedMaximumSize = null;  // cleared by invalidate()
+  protected boolean dirty = false;  // true if this component is scheduled for repainting (in retained mode)
 
   protected TPopupMenu pmContextMenu = null;
   protected Object actionEventHandler = null;
   protected Method actionEventMethod = null;
+  protected Object[] actionEventArgs = new Object[1];  // re-used when invoking actionEventMethod
+  protected static final ActionListener[] NO_ACTION_LISTENERS = new ActionListener[0];
+  protected ActionListener[] actionListeners = NO_ACTION_LISTENERS;  // replaced (not modified) when listeners are added or removed
+  protected TComponent actionEventTarget = null;  // nearest ancestor-or-self with action listeners or handler (cached)
+  protected int actionEventTargetVersion = -1;  // value of gui.treeVersion when actionEventTarget was determined
+  protected Executor actionEventExecutor = null;  // if set, action events are handled on this executor (see fireActionEvent)
+  protected ActionCompletionListener actionCompletionListener = null;
 
   protected TToolTip tooltip = null;
 
   public TComponent(TransparentGUI gui) { this.gui = gui; }
   public TransparentGUI getGUI() { return gui; }
   public TContainer getParent() { return parent; }
+  public TWindow getWindow() {
+    TComponent c = this;
+    while ((c != null) && !(c instanceof TWindow))
+      c = c.getParent();
+    return (TWindow)c;
+  }
   public Object getLayoutHint() { return hint; }
   public void setLayoutHint(Object o) { hint = o; invalidate(); }
 
   public boolean isValid() { return valid; }
   public boolean isVisible() { return visible; }
-  public boolean isShowing() { return isVisible() && (parent != null) && parent.isShowing(); }
-  public boolean isEnabled() { return enabled && ((parent == null) || (parent.isEnabled())); }
+  public boolean isShowing() { updateInheritedState(); return showing; }
+  public boolean isEnabled() { updateInheritedState(); return effectivelyEnabled; }
+  /** Recomputes the cached showing/enabled flags if any component was shown, hidden, enabled,
+   * disabled, added, or removed since they were last computed (the parent's flags are cached as well). */
+  protected void updateInheritedState() {
+    if ((gui != null) && (inheritedStateVersion == gui.stateVersion)) return;
+    showing = isVisible() && (parent != null) && parent.isShowing();
+    effectivelyEnabled = enabled && ((parent == null) || (parent.isEnabled()));
+    if (gui != null) inheritedStateVersion = gui.stateVersion;
+  }
   public boolean isFocusable() { return focusable; }
   public boolean isFocusOwner() { return gui.getFocusOwner() == this; }
-  public void setEnabled(boolean b) { enabled = b; }
-  public void setVisible(boolean b) { if (visible != b) { visible = b; if (parent != null) parent.invalidate(); } }
+  public void setEnabled(boolean b) { if (enabled != b) { enabled = b; if (gui != null) gui.stateVersion++; repaint(); } }
+  public void setVisible(boolean b) { if (visible != b) { repaint(); visible = b; if (gui != null) gui.stateVersion++; geometryChanged(); if (parent != null) parent.invalidate(); } }
   public void setVisibleAndEnabled(boolean b) { setVisible(b); setEnabled(b); }
-  public void setFocusable(boolean b) { focusable = b; }
+  public void setFocusable(boolean b) { if (focusable != b) { focusable = b; if (gui != null) gui.stateVersion++; } }
 
   public void requestFocus() { gui.requestFocus(this); }
   public void handleFocusGained() {}
   public void handleFocusLost() {}
-  public void transferFocus() { if (parent != null) gui.requestFocus(parent.getFocusableComponentAfter(this)); }
-  public void transferFocusBackward() { if (parent != null) gui.requestFocus(parent.getFocusableComponentBefore(this)); }
-
-  public Color getForegroundColor() {
-    Color c =  (fg != null) ? new Color(fg.getRGB(), true)
-                            : new Color(gui.style.getForegroundColor(this).getRGB(), true);
-    return new Color(c.getRed(), c.getGreen(), c.getBlue(), (int)(c.getAlpha()*(isEnabled() ? 1 : .25f)));
+  public void transferFocus() {
+    TWindow win = getWindow();
+    TComponent c = (win != null) ? win.getFocusTraversalNeighbor(this, 1) : null;
+    if (c != null) gui.requestFocus(c);
+    else if (parent != null) gui.requestFocus(parent.getFocusableComponentAfter(this));
+  }
+  public void transferFocusBackward() {
+    TWindow win = getWindow();
+    TComponent c = (win != null) ? win.getFocusTraversalNeighbor(this, -1) : null;
+    if (c != null) gui.requestFocus(c);
+    else if (parent != null) gui.requestFocus(parent.getFocusableComponentBefore(this));
   }
-  public void setForegroundColor(Color c) { fg = (c != null) ? new Color(c.getRGB(), true) : null; }
-  public int getForeground() { Color c = getForegroundColor(); return (c != null) ? c.getRGB() : 0; }
-  public void setForeground(int c) { fg = new Color(c, true); }
-  public boolean isForegroundSet() { return fg != null; }
 
-  public Color getBackgroundColor() {
-    Color c =  (bg != null) ? new Color(bg.getRGB(), true)
-                            : new Color(gui.style.getBackgroundColor(this).getRGB(), true);
-    return new Color(c.getRed(), c.getGreen(), c.getBlue(), c.getAlpha()*(isEnabled() ? 1 : 0));
+  public boolean isAttached() { return attached; }
+  /** Called when this component becomes part of the GUI's component tree.  Subclasses register their hot keys here. */
+  public void addNotify() { attached = true; displayListValid = false; }
+  /** Called before this component is taken out of the GUI's component tree.  Subclasses undo what addNotify did. */
+  public void removeNotify() { attached = false; if (isFocusOwner()) gui.requestFocus(null); }
+
+  /** Returns the ARGB color c with its alpha value multiplied by f. */
+  public static int scaleAlpha(int c, float f) { return ((int)((c >>> 24)*f) << 24) | (c & 0x00ffffff); }
+
+  public int getForeground() {
+    int c = fgSet ? fg : gui.style.getForeground(this);
+    return isEnabled() ? c : scaleAlpha(c, .25f);
+  }
+  public void setForeground(int c) { if (!fgSet || (fg != c)) { fg = c; fgSet = true; repaint(); } }
+  /** Drawing uses getForeground(), so subclasses have to override that one to change the color. */
+  public Color getForegroundColor() { return new Color(getForeground(), true); }
+  public void setForegroundColor(Color c) { if (c != null) setForeground(c.getRGB()); else if (fgSet) { fgSet = false; repaint(); } }
+  public boolean isForegroundSet() { return fgSet; }
+
+  public int getBackground() {
+    int c = bgSet ? bg : gui.style.getBackground(this);
+    return isEnabled() ? c : (c & 0x00ffffff);
   }
-  public void setBackgroundColor(Color c) { bg = (c != null) ? new Color(c.getRGB(), true) : null; }
-  public int getBackground() { Color c = getBackgroundColor(); return (c != null) ? c.getRGB() : 0; }
-  public void setBackground(int c) { bg = new Color(c, true); }
-  public boolean isBackgroundSet() { return bg != null; }
+  public void setBackground(int c) { if (!bgSet || (bg != c)) { bg = c; bgSet = true; repaint(); } }
+  /** Drawing uses getBackground(), so subclasses have to override that one to change the color. */
+  public Color getBackgroundColor() { return new Color(getBackground(), true); }
+  public void setBackgroundColor(Color c) { if (c != null) setBackground(c.getRGB()); else if (bgSet) { bgSet = false; repaint(); } }
+  public boolean isBackgroundSet() { return bgSet; }
 
   public PFont getFont() { return (fn != null) ? fn : gui.style.getFont(this); }
   public void setFont(PFont f) { fn = f; invalidate(); }
@@ -161,22 +312,39 @@ public class TComponent extends Object {
   public Point getLocation() {
     return new Point(bounds.x, bounds.y);
   }
-  public Point getLocationOnScreen() {
-    Point p = parent.getLocationOnScreen();
-    return new Point(p.x + bounds.x, p.y + bounds.y);
+  public Point getLocationOnScreen() { updateScreenLocation(); return new Point(screenX, screenY); }
+  public float getScreenX() { updateScreenLocation(); return screenX; }
+  public float getScreenY() { updateScreenLocation(); return screenY; }
+  /** Recomputes the cached screen location if anything in the GUI moved since it was last computed.
+   * The parent's location is cached as well, so this is a field read in the common case. */
+  protected void updateScreenLocation() {
+    if ((gui != null) && (screenLocationVersion == gui.geometryVersion)) return;
+    float px = 0, py = 0;
+    if (parent != null) { parent.updateScreenLocation(); px = parent.screenX; py = parent.screenY; }
+    screenX = px + bounds.x; screenY = py + bounds.y;
+    if (gui != null) screenLocationVersion = gui.geometryVersion;
   }
-  public void setLocation(float x, float y) { bounds.x = x; bounds.y = y; }
+  public void setLocation(float x, float y) { setBounds(x, y, bounds.width, bounds.height); }
   public void setLocation(Point p) { setLocation(p.x, p.y); }
 
   public Dimension getSize() {
     return new Dimension(bounds.width, bounds.height);
   }
-  public void setSize(float w, float h) { bounds.width = w; bounds.height = h; }
-  public void setSize(Dimension d) { bounds.width = d.width; bounds.height = d.height; }
+  public void setSize(float w, float h) { setBounds(bounds.x, bounds.y, w, h); }
+  public void setSize(Dimension d) { setSize(d.width, d.height); }
 
   public Rectangle getBounds() { return new Rectangle(bounds); }
-  public void setBounds(float x, float y, float w, float h) { bounds.x = x; bounds.y = y; bounds.width = w; bounds.height = h; }
-  public void setBounds(Rectangle r) { bounds = new Rectangle(r); }
+  public void setBounds(float x, float y, float w, float h) {
+    if ((x != bounds.x) || (y != bounds.y) || (w != bounds.width) || (h != bounds.height)) {
+      repaint();
+      geometryChanged(); }
+    bounds.x = x; bounds.y = y; bounds.width = w; bounds.height = h; }
+  /** Notifies the parent's hit testing index and the GUI's hit path cache that this component moved, appeared, or disappeared. */
+  protected void geometryChanged() {
+    if (parent != null) parent.indexValid = false;
+    if (gui != null) gui.geometryVersion++;
+  }
+  public void setBounds(Rectangle r) { setBounds(r.x, r.y, r.width, r.height); }
   public float getX() { return bounds.x; }
   public float getY() { return bounds.y; }
   public float getWidth() { return bounds.width; }
@@ -216,25 +384,23 @@ public class TComponent extends Object {
   public float getBorderLeft() { return border.left; }
 
   public BorderRadius getBorderRadius() { return new BorderRadius(borderRadius); }
-  public void setBorderRadius(float tl, float tr, float br, float bl) { borderRadius.topleft = tl; borderRadius.topright = tr; borderRadius.bottomright = br; borderRadius.bottomleft = bl; }
-  public void setBorderRadius(float r) { borderRadius.topleft = borderRadius.topright = borderRadius.bottomright = borderRadius.bottomleft = r; }
-  public void setBorderRadiusTop(float r) { borderRadius.topleft = borderRadius.topright = r; }
-  public void setBorderRadiusRight(float r) { borderRadius.topright = borderRadius.bottomright = r; }
-  public void setBorderRadiusBottom(float r) { borderRadius.bottomright = borderRadius.bottomleft = r; }
-  public void setBorderRadiusLeft(float r) { borderRadius.topleft = borderRadius.bottomleft = r; }
-  public void setBorderRadius(BorderRadius br) { borderRadius = new BorderRadius(br); }
+  public void setBorderRadius(float tl, float tr, float br, float bl) { borderRadius.topleft = tl; borderRadius.topright = tr; borderRadius.bottomright = br; borderRadius.bottomleft = bl; repaint(); }
+  public void setBorderRadius(float r) { borderRadius.topleft = borderRadius.topright = borderRadius.bottomright = borderRadius.bottomleft = r; repaint(); }
+  public void setBorderRadiusTop(float r) { borderRadius.topleft = borderRadius.topright = r; repaint(); }
+  public void setBorderRadiusRight(float r) { borderRadius.topright = borderRadius.bottomright = r; repaint(); }
+  public void setBorderRadiusBottom(float r) { borderRadius.bottomright = borderRadius.bottomleft = r; repaint(); }
+  public void setBorderRadiusLeft(float r) { borderRadius.topleft = borderRadius.bottomleft = r; repaint(); }
+  public void setBorderRadius(BorderRadius br) { borderRadius = new BorderRadius(br); repaint(); }
   public float getBorderRadiusTopLeft() { return borderRadius.topleft; }
   public float getBorderRadiusTopRight() { return borderRadius.topright; }
   public float getBorderRadiusBottomRight() { return borderRadius.bottomright; }
   public float getBorderRadiusBottomLeft() { return borderRadius.bottomleft; }
 
-  public Color getBorderColorObj() {
-    return (borderColor != null) ? new Color(borderColor.getRGB(), true)
-                                 : new Color(gui.style.getBorderColor(this).getRGB(), true); }
-  public void setBorderColor(Color c) { borderColor = (c != null) ? new Color(c.getRGB(), true) : null; }
-  public int getBorderColor() { Color c = getBorderColorObj(); return (c != null) ? c.getRGB() : 0; }
-  public void setBorderColor(int c) { borderColor = new Color(c, true); }
-  public boolean isBorderColorSet() { return borderColor != null; }
+  public int getBorderColor() { return borderColorSet ? borderColor : gui.style.getBorder(this); }
+  public void setBorderColor(int c) { if (!borderColorSet || (borderColor != c)) { borderColor = c; borderColorSet = true; repaint(); } }
+  public Color getBorderColorObj() { return new Color(getBorderColor(), true); }
+  public void setBorderColor(Color c) { if (c != null) setBorderColor(c.getRGB()); else if (borderColorSet) { borderColorSet = false; repaint(); } }
+  public boolean isBorderColorSet() { return borderColorSet; }
 
   public Dimension getPreferredSize() {
     Dimension d = getMinimumSize();
@@ -245,38 +411,174 @@ public class TComponent extends Object {
   public Dimension getMinimumSize() { return new Dimension(0, 0); }
   public Dimension getMaximumSize() { return new Dimension(Integer.MAX_VALUE, Integer.MAX_VALUE); }
 
+  /** Memoized versions of the size getters, for use by layout managers.  The cached sizes are
+   * cleared by invalidate(); the returned objects are shared and must not be modified. */
+  public Dimension getCachedPreferredSize() {
+    if (cachedPreferredSize == null) cachedPreferredSize = getPreferredSize(); return cachedPreferredSize; }
+  public Dimension getCachedMinimumSize() {
+    if (cachedMinimumSize == null) cachedMinimumSize = getMinimumSize(); return cachedMinimumSize; }
+  public Dimension getCachedMaximumSize() {
+    if (cachedMaximumSize == null) cachedMaximumSize = getMaximumSize(); return cachedMaximumSize; }
+  protected void clearSizeCache() { cachedPreferredSize = cachedMinimumSize = cachedMaximumSize = null; }
+
   public TPopupMenu getContextMenu() { return pmContextMenu; }
   public void setContextMenu(TPopupMenu menu) { pmContextMenu = menu; }
 
   public Object getActionEventHandler() { return actionEventHandler; }
   public Method getActionEventMethod() { return actionEventMethod; }
   public void setActionEventHandler(Object o, Method m) {
-    if ((o != null) && (m != null)) { actionEventHandler = o; actionEventMethod = m; } }
+    if ((o != null) && (m != null)) {
+      actionEventHandler = o; actionEventMethod = m;
+      try { m.setAccessible(true); } catch (SecurityException e) { /* invoke() will just be a bit slower */ }
+      actionEventHandlersChanged(); } }
   public void setActionEventHandler(Object o, String name) {
     try { setActionEventHandler(o, o.getClass().getMethod(name, new Class[] { String.class })); }
     catch (Exception e) { /* silently ignore this... */ } }
   public void setActionEventHandler(Object o) { if (o != null) setActionEventHandler(o, "actionPerformed"); }
 
+  /** Action listeners are notified before the action event handler.  Like the handler, they
+   * receive the action events of all descendants that do not have listeners or a handler themselves. */
+  public void addActionListener(ActionListener l) {
+    actionListeners = addListener(actionListeners, l);
+    actionEventHandlersChanged();
+  }
+  public void removeActionListener(ActionListener l) {
+    ActionListener[] ls = removeListener(actionListeners, l);
+    if (ls != actionListeners) { actionListeners = ls; actionEventHandlersChanged(); }
+  }
+  public ActionListener[] getActionListeners() { return actionListeners.clone(); }
+  protected void actionEventHandlersChanged() { if (gui != null) gui.treeVersion++; }
+
+  /** Returns a copy of ls with l appended.  Listener arrays are never modified in place, so they
+   * can be iterated while listeners add or remove themselves. */
+  @SuppressWarnings("unchecked")
+  protected static <T> T[] addListener(T[] ls, T l) {
+    T[] result = (T[])Array.newInstance(ls.getClass().getComponentType(), ls.length + 1);
+    System.arraycopy(ls, 0, result, 0, ls.length);
+    result[ls.length] = l;
+    return result;
+  }
+  /** Returns a copy of ls without the first occurrence of l (or ls itself if l is not in it). */
+  @SuppressWarnings("unchecked")
+  protected static <T> T[] removeListener(T[] ls, T l) {
+    for (int i = 0; i < ls.length; i++)
+      if (ls[i] == l) {
+        T[] result = (T[])Array.newInstance(ls.getClass().getComponentType(), ls.length - 1);
+        System.arraycopy(ls, 0, result, 0, i);
+        System.arraycopy(ls, i + 1, result, i, result.length - i);
+        return result;
+      }
+    return ls;
+  }
+
+  /** Returns the component which handles this component's action events, i.e., the nearest
+   * component (starting with this one) that has action listeners or an action event handler. */
+  public TComponent getActionEventTarget() {
+    if ((gui == null) || (actionEventTargetVersion != gui.treeVersion)) {
+      actionEventTarget = ((actionListeners.length > 0) || ((actionEventHandler != null) && (actionEventMethod != null))) ? this
+                        : (parent != null) ? parent.getActionEventTarget() : null;
+      if (gui != null) actionEventTargetVersion = gui.treeVersion;
+    }
+    return actionEventTarget;
+  }
+
+  /** Notifies this component's action listeners and handler.  Returns false if the handler failed. */
+  protected boolean dispatchActionEvent(ActionEvent event) { return dispatchActionEvent(event, actionEventArgs) == null; }
+  /** Notifies this component's action listeners and handler, passing the action command to the handler
+   * in args[0].  Returns the exception thrown by the handler, or null if it succeeded. */
+  protected Throwable dispatchActionEvent(ActionEvent event, Object[] args) {
+    ActionListener[] ls = actionListeners;
+    for (int i = 0; i < ls.length; i++)
+      ls[i].actionPerformed(event);
+    if ((actionEventHandler != null) && (actionEventMethod != null)) {
+      args[0] = event.getActionCommand();
+      try { actionEventMethod.invoke(actionEventHandler, args); }
+      catch (InvocationTargetException e) { e.printStackTrace(); return e.getCause(); }
+      catch (Exception e) { e.printStackTrace(); return e; }
+      finally { args[0] = null; }
+    }
+    return null;
+  }
+
+  /** Notified on the animation thread when an asynchronously dispatched action event has been handled. */
+  public interface ActionCompletionListener {
+    /** error is the exception thrown while handling the event, or null if it was handled successfully. */
+    public void actionCompleted(ActionEvent event, Throwable error);
+  }
+
+  public Executor getActionEventExecutor() { return actionEventExecutor; }
+  /** If an executor is set, action events fired by this component (or handled by this component's listeners
+   * and handler) are dispatched on that executor instead of the event thread, so slow handlers do not freeze
+   * the GUI.  Asynchronous handlers must use gui.invokeLater to modify the GUI, and gui.getActionEvent() instead
+   * of gui.actionEvent to read the event they are handling. */
+  public void setActionEventExecutor(Executor executor) { actionEventExecutor = executor; }
+  /** Shortcut for setActionEventExecutor(gui.getDefaultExecutor()) or setActionEventExecutor(null). */
+  public void setAsyncActionEvents(boolean b) { setActionEventExecutor(b ? gui.getDefaultExecutor() : null); }
+  public ActionCompletionListener getActionCompletionListener() { return actionCompletionListener; }
+  public void setActionCompletionListener(ActionCompletionListener l) { actionCompletionListener = l; }
+  /** Called before an action event fired by this component is handed to an executor. */
+  protected void handleActionStarted(ActionEvent event) {}
+  /** Called on the animation thread when an asynchronously dispatched action event fired by this component has been handled. */
+  protected void handleActionCompleted(ActionEvent event, Throwable error) {
+    if (actionCompletionListener != null) actionCompletionListener.actionCompleted(event, error); }
+
   public TToolTip getToolTip() { return tooltip; }
   public void setToolTip(TToolTip tooltip) { this.tooltip = tooltip; }
   public void setToolTip(String str) { setToolTip(new TToolTip(this, str)); }
 
+  /** Schedules this component for repainting.  This only has an effect if the GUI is in retained mode,
+   * in which case the area covered by this component (before and after the next layout pass) will be
+   * redrawn in the next frame.  Components have to call this whenever their appearance changes. */
+  public void repaint() {
+    if (gui == null) return;
+    gui.repaint(this);
+    TWindow win = getWindow();
+    if (win != null) win.layerValid = false;  // window has to re-rasterize its layer
+    // re-record the display list segment this component is drawn into (see TransparentGUI.drawSegments)
+    for (TComponent c = this; c != null; c = c.parent) {
+      c.displayListValid = false;
+      if ((c.parent == null) || c.parent.isSegmented()) break;
+    }
+  }
+  /** Repaints this component at the given time (in app.millis()), see TransparentGUI.scheduleRepaint. */
+  public void repaintAt(int millis) { if (gui != null) gui.scheduleRepaint(this, millis); }
+
   public void doLayout() {}
   public void validate() {
     doLayout();  // in TContainer, this will trigger the actual layout algorithm
     valid = true;  // ok, ready to be displayed
   }
   public void invalidate() {
+    if ((gui != null) && gui.deferInvalidate(this)) return;  // will be invalidated at the end of the current batch
     valid = false;   // something's wrong with this component
+    clearSizeCache();
+    repaint();  // ... and it will probably look different after re-validation
     if (tooltip != null) tooltip.invalidate();  // tooltip position might have to be updated
-    if (parent != null) parent.invalidate();  // the container this component is in will have to redo its layout
+    invalidateParent();  // the container this component is in will have to redo its layout
+  }
+  /** Invalidates the parent, unless it is already invalid and has not been measured since
+   * (in which case all its ancestors have already been invalidated as well). */
+  protected void invalidateParent() {
+    if ((parent != null) && (parent.valid || parent.hasCachedSize()))
+      parent.invalidate();
   }
+  protected boolean hasCachedSize() {
+    return (cachedPreferredSize != null) || (cachedMinimumSize != null) || (cachedMaximumSize != null); }
 
   public boolean contains(float x, float y) { return bounds.contains(x, y); }
   public boolean contains(Point p) { return contains(p.x, p.y); }
   public TComponent getComponentAt(float x, float y) { return contains(x, y) && visible ? this : null; }
   public TComponent getComponentAt(Point p) { return getComponentAt(p.x, p.y); }
 
+  /** Returns the nearest component which handles mouse events, starting with this one and going up the hierarchy. */
+  public TComponent getMouseCapturer() {
+    if (mouseCapturerVersion != gui.treeVersion) {
+      mouseCapturer = capturesMouse ? this : (parent != null) ? parent.getMouseCapturer() : null;
+      mouseCapturerVersion = gui.treeVersion;
+    }
+    return mouseCapturer;
+  }
+
   public void handleKeyEvent(KeyEvent e) {
     if (!isFocusOwner()) return;
     if ((e.getKeyCode() == KeyEvent.VK_TAB) || (e.getKeyChar() == '\t')) {
@@ -288,18 +590,22 @@ public class TComponent extends Object {
     }
   }
 
+  /** Called once per frame (in pre()) after this component called gui.coalesce(this), to deliver
+   * changes that were collected from several input events (see TransparentGUI.setEventCoalescing). */
+  protected void flushCoalescedEvents() {}
+
   public void handleMouseEvent(MouseEvent e) {
     if ((pmContextMenu != null) && e.isPopupTrigger())
       pmContextMenu.show(gui, gui.app.mouseX, gui.app.mouseY);
     else switch (e.getID()) {
       case MouseEvent.MOUSE_PRESSED:
-        if (clickable) mouseState = mouseState | MOUSE_DOWN;
+        if (clickable) { mouseState = mouseState | MOUSE_DOWN; repaint(); }
         break;
       case MouseEvent.MOUSE_RELEASED:
         if ((mouseState & MOUSE_DOWN) != 0)
           handleMouseClicked();
         mouseState = mouseState & ~MOUSE_DOWN;
-        break;
+        repaint(); break;
       case MouseEvent.MOUSE_CLICKED:
         // Java only generates MOUSE_CLICKED for PRESSED+RELEASED without move.  We want MOUSE_CLICKED
         // if both PRESSED and RELEASED were over this component.  Thus, we call handleMouseClicked()
@@ -310,78 +616,71 @@ public class TComponent extends Object {
   }
   public void handleMouseClicked() {}  // called by handleMouseEvent when both PRESSED and RELEASED occured with this == componentAtMouse
   public void handleMouseEntered() {  // called by TransparentGUI when this component becomes componentAtMouse
-    if ((gui.componentMouseClicked == null) || (gui.componentMouseClicked == this)) mouseState = MOUSE_OVER; }
-  public void handleMouseExited() { mouseState = MOUSE_NONE; }  // called by TransparentGUI when this component is no longer componentAtMouse
+    if ((gui.componentMouseClicked == null) || (gui.componentMouseClicked == this)) { mouseState = MOUSE_OVER; repaint(); } }
+  public void handleMouseExited() { mouseState = MOUSE_NONE; repaint(); }  // called by TransparentGUI when this component is no longer componentAtMouse
 
   protected final static float RNDCTRLFACTOR = (1 - 4.f*(float)(Math.sqrt(2) - 1)/3.f);
 
   protected void drawRoundRectangle(PGraphics g) { drawRoundRectangle(g, borderRadius); }
-  protected void drawRoundRectangle(PGraphics g, float rnd) { drawRoundRectangle(g, new BorderRadius(rnd)); }
+  protected void drawRoundRectangle(PGraphics g, float rnd) { drawRoundRectangle(g, rnd, rnd, rnd, rnd); }
   protected void drawRoundRectangle(PGraphics g, BorderRadius br) {
-    float rndTL = br.topleft;
-    float rndTR = br.topright;
-    float rndBR = br.bottomright;
-    float rndBL = br.bottomleft;
-    float rndctrlTL = rndTL * RNDCTRLFACTOR;
-    float rndctrlTR = (rndTR == rndTL) ? rndctrlTL : rndTR * RNDCTRLFACTOR;
-    float rndctrlBR = (rndBR == rndTL) ? rndctrlTL : rndBR * RNDCTRLFACTOR;
-    float rndctrlBL = (rndBL == rndTL) ? rndctrlTL : rndBL * RNDCTRLFACTOR;
+    drawRoundRectangle(g, br.topleft, br.topright, br.bottomright, br.bottomleft); }
+  protected void drawRoundRectangle(PGraphics g, float tl, float tr, float br, float bl) {
+    // the outline is taken from the cache and shifted to this component's location
+    float[] v = RoundRectangleCache.get(bounds.width, bounds.height, tl, tr, br, bl);
     g.beginShape();
-    g.vertex(bounds.x + rndTL, bounds.y);
-    g.vertex(bounds.x + bounds.width - rndTR, bounds.y);
-    g.bezierVertex(bounds.x + bounds.width - rndctrlTR, bounds.y, bounds.x + bounds.width, bounds.y + rndctrlTR, bounds.x + bounds.width, bounds.y + rndTR);
-    g.vertex(bounds.x + bounds.width, bounds.y + bounds.height - rndBR);
-    g.bezierVertex(bounds.x + bounds.width, bounds.y + bounds.height - rndctrlBR, bounds.x + bounds.width - rndctrlBR, bounds.y + bounds.height, bounds.x + bounds.width - rndBR, bounds.y + bounds.height);
-    g.vertex(bounds.x + rndBL, bounds.y + bounds.height);
-    g.bezierVertex(bounds.x + rndctrlBL, bounds.y + bounds.height, bounds.x, bounds.y + bounds.height - rndctrlBL, bounds.x, bounds.y + bounds.height - rndBL);
-    g.vertex(bounds.x, bounds.y + rndTL);
-    g.bezierVertex(bounds.x, bounds.y + rndctrlTL, bounds.x + rndctrlTL, bounds.y, bounds.x + rndTL, bounds.y);
+    for (int i = 0; i < v.length; i += 2)
+      g.vertex(bounds.x + v[i], bounds.y + v[i+1]);
     g.endShape();
   }
 
   protected void drawBackground(PGraphics g) {
     if ((bounds.width == 0) || (bounds.height == 0)) return;  // nothing to draw here
-    Color bg = getBackgroundColor();
+    int bg = getBackground();
     if (clickable && isEnabled()) {  // adjust background alpha
       bgAlpha_target = ((mouseState & MOUSE_DOWN) != 0) ? 1.0f : ((mouseState & MOUSE_OVER) != 0) ? 0.5f : 0.0f;
       bgAlpha += 10*(bgAlpha_target - bgAlpha)*gui.dt;
       bgAlpha = Math.max(0, Math.min(1, bgAlpha));
-      bg = new Color(bg.getRed(), bg.getGreen(), bg.getBlue(), (int)(bg.getAlpha()*bgAlpha));
+      if (Math.abs(bgAlpha_target - bgAlpha) < .005f) bgAlpha = bgAlpha_target;
+      else repaint();  // keep animating in retained mode
+      bg = scaleAlpha(bg, bgAlpha);
     }
-    if (bg.getAlpha() == 0) return;  // nothing to draw here
-    g.noStroke(); g.fill(bg.getRGB());
+    if ((bg >>> 24) == 0) return;  // nothing to draw here
+    TRenderState rs = gui.renderState(g);
+    rs.noStroke(); rs.fill(bg);
     if (borderRadius.get() == 0) {
-      g.rectMode(g.CORNER); g.rect(bounds.x, bounds.y, bounds.width, bounds.height);
+      rs.rectMode(PGraphics.CORNER); g.rect(bounds.x, bounds.y, bounds.width, bounds.height);
     } else
       drawRoundRectangle(g);
   }
 
   protected void drawBorder(PGraphics g) {
     if ((bounds.width == 0) || (bounds.height == 0)) return;  // nothing to draw here
-    Color bc = getBorderColorObj();
+    int bc = getBorderColor();
     float bw = border.get();  // this will be the border width for all four edges or -1 if they are different
-    if (isFocusOwner()) { bw = 1; bc = new java.awt.Color(255, 0, 0); }  // FIXME: should this be a style option?
+    if (isFocusOwner()) { bw = 1; bc = 0xffff0000; }  // FIXME: should this be a style option?
     if (this instanceof TFrame) {
-      if (((TWindow)this).isFocused()) { bw = 2; bc = new java.awt.Color(200, 0, 0, 200); }  // FIXME: style
-      else if (((TWindow)this).isActive()) { bw = 2; bc = new java.awt.Color(127, 127, 127, 200); }  // FIXME: style
+      if (((TWindow)this).isFocused()) { bw = 2; bc = 0xc8c80000; }  // FIXME: style
+      else if (((TWindow)this).isActive()) { bw = 2; bc = 0xc87f7f7f; }  // FIXME: style
     }
     if ((pmContextMenu != null) && pmContextMenu.isShowing()) bw = 2;  // FIXME: should this be a style option?
-    if ((bc.getAlpha() == 0) || (bw == 0)) return;  // nothing to draw here
-    g.noFill(); g.strokeWeight(bw); g.stroke(bc.getRGB());
+    if (((bc >>> 24) == 0) || (bw == 0)) return;  // nothing to draw here
+    TRenderState rs = gui.renderState(g);
+    rs.noFill(); rs.strokeWeight(bw); rs.stroke(bc);
     if (bw != -1) {
       // draw full border at once
       if (borderRadius.get() == 0) {
-        g.rectMode(g.CORNER); g.rect(bounds.x, bounds.y, bounds.width, bounds.height);
+        rs.rectMode(PGraphics.CORNER); g.rect(bounds.x, bounds.y, bounds.width, bounds.height);
       } else
         drawRoundRectangle(g);
     } else {
       // draw individual borders
-      if (border.top > 0) { g.strokeWeight(border.top); g.line(bounds.x, bounds.y, bounds.x + bounds.width, bounds.y); }
-      if (border.right > 0) { g.strokeWeight(border.right); g.line(bounds.x + bounds.width, bounds.y, bounds.x + bounds.width, bounds.y + bounds.height); }
-      if (border.bottom > 0) { g.strokeWeight(border.bottom); g.line(bounds.x, bounds.y + bounds.height, bounds.x + bounds.width, bounds.y + bounds.height); }
-      if (border.left > 0) { g.strokeWeight(border.left); g.line(bounds.x, bounds.y, bounds.x, bounds.y + bounds.height); }
+      if (border.top > 0) { rs.strokeWeight(border.top); g.line(bounds.x, bounds.y, bounds.x + bounds.width, bounds.y); }
+      if (border.right > 0) { rs.strokeWeight(border.right); g.line(bounds.x + bounds.width, bounds.y, bounds.x + bounds.width, bounds.y + bounds.height); }
+      if (border.bottom > 0) { rs.strokeWeight(border.bottom); g.line(bounds.x, bounds.y + bounds.height, bounds.x + bounds.width, bounds.y + bounds.height); }
+      if (border.left > 0) { rs.strokeWeight(border.left); g.line(bounds.x, bounds.y, bounds.x, bounds.y + bounds.height); }
     }
-    g.strokeWeight(1);  // restore stroke weight to standard value
+    rs.strokeWeight(1);  // restore stroke weight to standard value
   }
 
   protected void drawLayout(PGraphics g) {
@@ -23,8 +23,12 @@ import processing.core.PApplet;
 import processing.core.PFont;
 import processing.core.PGraphics;
 import processing.core.PImage;
-import java.util.Vector;
 import java.util.Stack;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TConsole extends TComponent {
 
@@ -43,7 +47,7 @@ public class TConsole extends TComponent {
   public static final int ALIGN_RIGHT = PApplet.RIGHT;
   protected int align = ALIGN_RIGHT;
 
-  public static final int BUFFER_SIZE = 5000;  // number of messages to keep
+  public static final int BUFFER_SIZE = 5000;  // default number of messages to keep (see setBufferSize)
 
   public static final int MSG_ERROR = 1;
   public static final int MSG_WARNING = 2;
@@ -54,20 +58,33 @@ public class TConsole extends TComponent {
   public static final int MSG_STICKY = 512;
   public static final int MSG_REVOKED = 1024;
 
+  /** Receives the text TConsole echoes to standard output (called on the animation thread). */
+  public interface OutputSink { public void print(String str); }
+
+  /** A message in the console.  Messages in the history are stored in a MessageStore; Message objects are views
+   * of a stored message.  Their public fields are snapshots taken when the view was created (only the logged
+   * Message itself is kept current).  The methods write back just the fields they change, so changes made
+   * through different views of the same message don't undo each other.  The methods may be called from any
+   * thread: progress updates are lock-free, all other changes are applied on the animation thread. */
   public class Message {
+    protected long seq = -1;  // sequence number in the MessageStore (-1 if not stored yet)
     public int type;
     public String text;
     public int t0;  // posting time of message
-    public float progress;  // current progress, between 0 and 1
+    public float progress;  // current progress, between 0 and 1 (as last seen by the animation thread, see getProgress)
+    protected AtomicInteger progressBits = null;  // live progress (float bits) of progress messages, updated by any thread
+    protected AtomicBoolean finishPosted = null;  // set once updateProgress reached 1 and called finishProgress
     public int t1 = -1;  // time of finishing progress; -1 = unfinished; -2 = aborted
     public int tE = Integer.MAX_VALUE;  // time of exit, i.e. when this message will start fading out
     public float y = Float.NaN, a = Float.NaN;  // last drawn y position on screen and alpha value
 
+    protected Message() {}  // for MessageStore.view
     public Message(int type, String text) { this(type, text, false); }
     public Message(int type, String text, boolean prog) {
       this.type = type; this.text = ("" + text).replace('\n', ' ');  // if text is null, this will yield "null"
       this.t0 = gui.app.millis();
       if (prog) { this.type = this.type | MSG_PROGRESS; progress = 0; this.text += " \u2026"; }  // add ellipsis
+      if (prog) { progressBits = new AtomicInteger(Float.floatToIntBits(0)); finishPosted = new AtomicBoolean(false); }
     }
     public Message sticky() { TConsole.this.pushSticky(this); setSticky(true); return this; }  // for console.logXXX(...).sticky()
     public void revoke() { setRevoked(true); }
@@ -76,40 +93,54 @@ public class TConsole extends TComponent {
     public boolean hasProgress() { return (type & MSG_PROGRESS) > 0; }
     public boolean hasActiveProgress() { return hasProgress() && (t1 == -1); }
     public void updateProgress(float p) { updateProgress(p, 1); }
+    public float getProgress() { return (progressBits != null) ? Float.intBitsToFloat(progressBits.get()) : progress; }
+    /** Sets the progress to p/pmax.  This only stores the new value atomically, so it is cheap enough to be
+     * called in tight loops; the animation thread picks it up when drawing (see updateLiveProgress). */
     public void updateProgress(float p, float pmax) {
-      if (!hasActiveProgress()) return;
-      float lastProgress = progress; progress = p/pmax;
-      TConsole.this.handleUpdateProgress(this, lastProgress);
-      if (progress >= 1) finishProgress(); }
+      if (!hasActiveProgress() || (progressBits == null)) return;
+      float val = p/pmax;
+      float last = Float.intBitsToFloat(progressBits.getAndSet(Float.floatToIntBits(val)));
+      if ((int)(10*val) != (int)(10*last)) TConsole.this.scheduleDrain();  // report progress on standard output
+      if ((val >= 1) && finishPosted.compareAndSet(false, true)) finishProgress(); }  // post it only once
     public void finishProgress() { finishProgress(null); }
-    public void finishProgress(String addText) {
+    public void finishProgress(final String addText) {
+      if (!gui.isFrameThread()) { gui.invokeLater(new Runnable() { public void run() { finishProgress(addText); } }); return; }
       if (!hasActiveProgress()) return;
-      progress = 1; t1 = gui.app.millis(); text += " " + ((addText != null) ? addText + ", " : "") + minsec(t1 - t0); setExitTime(t1);
+      setFinalProgress(); t1 = gui.app.millis(); text += " " + ((addText != null) ? addText + ", " : "") + minsec(t1 - t0);
+      storeFinish(); setExitTime(t1);
       TConsole.this.handleFinishProgress(this); }
     public void abortProgress() {
+      if (!gui.isFrameThread()) { gui.invokeLater(new Runnable() { public void run() { abortProgress(); } }); return; }
       if (!hasActiveProgress()) return;
-      progress = 1; t1 = -2; text += " aborted"; setExitTime(gui.app.millis());
+      setFinalProgress(); t1 = -2; text += " aborted"; storeFinish(); setExitTime(gui.app.millis());
       TConsole.this.handleAbortProgress(this); }
+    protected void setFinalProgress() { progress = 1; if (progressBits != null) progressBits.set(Float.floatToIntBits(1)); }
 
     public boolean isSticky() { return (type & MSG_STICKY) > 0; }
-    public void setSticky(boolean sticky) {
+    public void setSticky(final boolean sticky) {
+      if (!gui.isFrameThread()) { gui.invokeLater(new Runnable() { public void run() { setSticky(sticky); } }); return; }
       if (isSticky() && !sticky) {
         setExitTime(t1 = gui.app.millis());  // try to exit normally...
         // ... but wait for any messages that appeared during the sticky period
         for (int i = msgs.size()-1; i > msgs.indexOf(this); i--)
-          if (msgs.get(i).tE != Integer.MAX_VALUE)
-            tE = PApplet.max(tE, msgs.get(i).tE);
+          if (msgs.tE[msgs.slot(i)] != Integer.MAX_VALUE)
+            tE = PApplet.max(tE, msgs.tE[msgs.slot(i)]);
         type = type & ~MSG_STICKY;
       } else if (!isSticky() && sticky) {
         tE = Integer.MAX_VALUE;
         type = type | MSG_STICKY;
-      }
+      } else return;
+      int s = storedSlot();
+      if (s != -1) { msgs.type[s] = (msgs.type[s] & ~MSG_STICKY) | (type & MSG_STICKY); msgs.t1[s] = t1; msgs.tE[s] = tE; }
     }
 
     public boolean isRevoked() { return (type & MSG_REVOKED) > 0; }
-    public void setRevoked(boolean revoked) {
+    public void setRevoked(final boolean revoked) {
+      if (!gui.isFrameThread()) { gui.invokeLater(new Runnable() { public void run() { setRevoked(revoked); } }); return; }
       if (revoked) type = type | MSG_REVOKED;
-      else type = type & ~MSG_REVOKED; }
+      else type = type & ~MSG_REVOKED;
+      int s = storedSlot();
+      if (s != -1) msgs.type[s] = (msgs.type[s] & ~MSG_REVOKED) | (type & MSG_REVOKED); }
 
     protected void setExitTime(int tRef) {
       tE = 1500;
@@ -120,14 +151,25 @@ public class TConsole extends TComponent {
       if ((type & 0xff) <= MSG_WARNING) tE *= 1.25;
       if ((type & 0xff) <= MSG_ERROR) tE *= 1.1;
       tE = tRef + tE;
+      storeExitTime();
     }
 
+    /** Returns this message's slot in the store, or -1 if it is not stored (yet or anymore). */
+    protected int storedSlot() {
+      int s = msgs.slotOf(this);
+      if (s != -1) addLive(seq);  // an old message might become visible again (e.g., made sticky)
+      return s;
+    }
+    protected void storeExitTime() { int s = storedSlot(); if (s != -1) msgs.tE[s] = tE; }
+    protected void storeProgress() { int s = storedSlot(); if (s != -1) msgs.progress[s] = progress; }
+    protected void storeFinish() { int s = storedSlot(); if (s != -1) { msgs.progress[s] = progress; msgs.t1[s] = t1; msgs.text[s] = text; } }
+
     public String toString() {
       String res = (TConsole.this.tag != null) ? "[" + TConsole.this.tag + "] " : "";
       if (hasProgress()) {
         res += ">>> " + text.replace("\u2026", "...");  // remove Unicode ellipsis
         if (hasActiveProgress())
-          res += String.format(" %.0f%%", 100*progress);
+          res += String.format(" %.0f%%", 100*getProgress());
       } else {
         switch (type & 255) {
           case MSG_ERROR: res += "XXX"; break;
@@ -142,9 +184,95 @@ public class TConsole extends TComponent {
     }
   }
 
-  Vector<Message> msgs = new Vector<Message>();
+  /** Ring buffer holding the message history in parallel primitive arrays.  Appending and evicting the
+   * oldest message are O(1); arrays grow on demand up to the capacity.  Message objects are only
+   * created (as views) when a message is logged or queried. */
+  protected class MessageStore {
+    protected int capacity;  // maximum number of messages
+    protected int head = 0, size = 0;  // slot of the oldest message, number of stored messages
+    protected long firstSeq = 0;  // sequence number of the oldest message
+    protected int[] type = new int[0], t0 = new int[0], t1 = new int[0], tE = new int[0];
+    protected float[] progress = new float[0], y = new float[0], a = new float[0];
+    protected String[] text = new String[0];
+
+    public MessageStore(int capacity) { this.capacity = PApplet.max(1, capacity); }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+    public int getCapacity() { return capacity; }
+    public void setCapacity(int n) {
+      n = PApplet.max(1, n);
+      while (size > n) evict();
+      capacity = n;
+      if (type.length > n) allocate(n);  // the ring may only wrap around when size == capacity == type.length
+    }
+    public void clear() { firstSeq += size; head = size = 0; java.util.Arrays.fill(text, null); }
+
+    /** Returns the array slot of the i-th oldest message. */
+    protected int slot(int i) { int s = head + i; return (s < type.length) ? s : s - type.length; }
+    /** Returns the index (0 = oldest) of the message with the given sequence number, or -1 if it was evicted. */
+    public int indexOf(Message msg) { return ((msg.seq < firstSeq) || (msg.seq >= firstSeq + size)) ? -1 : (int)(msg.seq - firstSeq); }
+    /** Returns the array slot of msg, or -1 if it was evicted (or not stored yet). */
+    protected int slotOf(Message msg) { int i = indexOf(msg); return (i == -1) ? -1 : slot(i); }
+
+    protected Object unroll(Object src, Object dst) {  // copies the ring into dst starting at index 0
+      int n1 = PApplet.min(size, java.lang.reflect.Array.getLength(src) - head);
+      System.arraycopy(src, head, dst, 0, n1);
+      System.arraycopy(src, 0, dst, n1, size - n1);
+      return dst;
+    }
+    protected void allocate(int n) {
+      type = (int[])unroll(type, new int[n]); t0 = (int[])unroll(t0, new int[n]);
+      t1 = (int[])unroll(t1, new int[n]); tE = (int[])unroll(tE, new int[n]);
+      progress = (float[])unroll(progress, new float[n]);
+      y = (float[])unroll(y, new float[n]); a = (float[])unroll(a, new float[n]);
+      text = (String[])unroll(text, new String[n]);
+      head = 0;
+    }
+    protected void evict() { text[head] = null; head = slot(1); size--; firstSeq++; }
+
+    public void add(Message msg) {
+      if (size == capacity) evict();
+      else if (size == type.length) allocate(PApplet.min(capacity, PApplet.max(64, 2*type.length)));
+      msg.seq = firstSeq + size++;
+      int s = slot(size - 1);
+      type[s] = msg.type; text[s] = msg.text; t0[s] = msg.t0; t1[s] = msg.t1; tE[s] = msg.tE; progress[s] = msg.progress;
+      y[s] = msg.y; a[s] = msg.a;
+    }
+    /** Returns a view of the i-th oldest message (the logged Message itself if its progress is still active). */
+    public Message get(int i) {
+      for (int j = 0; j < liveProgress.size(); j++)
+        if (liveProgress.get(j).seq == firstSeq + i) return liveProgress.get(j);
+      return view(i, new Message());
+    }
+    public Message lastElement() { return get(size - 1); }
+    /** Fills msg with the state of the i-th oldest message (used to draw without creating objects). */
+    protected Message view(int i, Message msg) {
+      int s = slot(i);
+      msg.seq = firstSeq + i;
+      msg.type = type[s]; msg.text = text[s]; msg.t0 = t0[s]; msg.t1 = t1[s]; msg.tE = tE[s]; msg.progress = progress[s];
+      msg.y = y[s]; msg.a = a[s];
+      return msg;
+    }
+    /** Stores the animation state of the i-th oldest message (see drawMessage). */
+    protected void setAnimation(int i, float y, float a) { int s = slot(i); this.y[s] = y; this.a[s] = a; }
+  }
+
+  MessageStore msgs = new MessageStore(BUFFER_SIZE);
+  protected Message msgView = new Message();  // re-used view for drawing
+  protected long[] liveSeqs = new long[64];  // ascending sequence numbers of the messages that have not faded out for good (the only ones draw() visits)
+  protected int liveStart = 0, liveEnd = 0;  // used range of liveSeqs
   Stack<Message> stickyMsgs = new Stack<Message>();
-  Message msgprog = null;  // most recent message with progress bar
+  AtomicReference<Message> msgprog = new AtomicReference<Message>();  // most recent message with progress bar (target of the short-cuts)
+  protected Message stdoutProgress = null;  // progress message whose line on standard output is still open
+  protected Vector<Message> liveProgress = new Vector<Message>();  // stored messages with active progress (animation thread only)
+  protected ConcurrentLinkedQueue<Message> pendingMsgs = new ConcurrentLinkedQueue<Message>();  // logged, but not stored yet
+  protected AtomicBoolean drainScheduled = new AtomicBoolean(false);
+  protected Runnable drainTask = new Runnable() { public void run() { drain(); } };
+  protected OutputSink outputSink = null;  // receives the messages echoed to standard output
+  protected boolean outputSinkSet = false;  // if false, outputSink is set to the shared stdout sink on first use
+  protected boolean animating = false;  // true if any message was still fading or moving in the last draw() call
+  protected int nextExit = Integer.MAX_VALUE;  // earliest exit time of the messages drawn in the last draw() call that are waiting to fade out
 
   public TConsole(TransparentGUI gui) { this(gui, null, false); }
   public TConsole(TransparentGUI gui, String tag) { this(gui, tag, false); }
@@ -163,15 +291,15 @@ public class TConsole extends TComponent {
   public void setTag(String tag) { this.tag = tag; }
 
   public boolean showsDebug() { return showDebug; }
-  public void setShowDebug(boolean b) { showDebug = b; }
+  public void setShowDebug(boolean b) { showDebug = b; resetLive(); }
 
   public boolean isPersistent() { return persistent; }
-  public void setPersistent(boolean b) { persistent = b; }
+  public void setPersistent(boolean b) { persistent = b; resetLive(); }
   public boolean isFancy() { return fancy; }
-  public void setFancy(boolean b) { fancy = b; persistent = !b; }
+  public void setFancy(boolean b) { fancy = b; persistent = !b; resetLive(); }
 
   public int getAlignment() { return align; }
-  public void setAlignment(int align) { this.align = align; }
+  public void setAlignment(int align) { this.align = align; repaint(); }
 
   public float getFontSize() { return fnsize; }
   public void setFontSize(float fnsize) {
@@ -182,10 +310,46 @@ public class TConsole extends TComponent {
     imgProgBar = gui.app.createImage(progbarwidth, progbarheight, PApplet.ARGB);
   }
 
+  public int getBufferSize() { return msgs.getCapacity(); }
+  /** Sets the number of messages to keep (the oldest messages are dropped first). */
+  public void setBufferSize(int n) { msgs.setCapacity(n); if (!fancy) invalidate(); repaint(); }
+
+  public OutputSink getOutputSink() {
+    if (!outputSinkSet) { outputSink = TAsyncOutputSink.getStdout(); outputSinkSet = true; }  // the writer thread is only started when needed
+    return outputSink; }
+  /** Sets where messages are echoed to.  The default sink writes to System.out on a background thread (see
+   * TAsyncOutputSink); null disables the echo. */
+  public void setOutputSink(OutputSink sink) { outputSink = sink; outputSinkSet = true; }
+  protected void print(String str) { OutputSink sink = getOutputSink(); if (sink != null) sink.print(str); }
+
   public void pushSticky(Message msg) { stickyMsgs.push(msg); msg.setSticky(true); }
   public Message popSticky() { Message msg = stickyMsgs.pop(); msg.setSticky(false); return msg; }
 
-  public void clear() { msgs.clear(); if (!fancy) invalidate(); }
+  public void clear() { msgs.clear(); liveProgress.clear(); resetLive(); if (!fancy) invalidate(); repaint(); }
+
+  /** Adds a stored message to the live index (which draw() walks instead of the whole history). */
+  protected void addLive(long seq) {
+    while ((liveStart < liveEnd) && (liveSeqs[liveStart] < msgs.firstSeq)) liveStart++;  // drop evicted messages
+    int i = liveEnd;
+    if ((liveStart < liveEnd) && (seq <= liveSeqs[liveEnd - 1])) {  // not the newest message: rare, find its place
+      i = java.util.Arrays.binarySearch(liveSeqs, liveStart, liveEnd, seq);
+      if (i >= 0) return;  // already live
+      i = -i - 1;
+    }
+    if (liveEnd == liveSeqs.length) {  // make room at the end
+      int n = liveEnd - liveStart;
+      long[] a = (2*n > liveSeqs.length) ? new long[2*liveSeqs.length] : liveSeqs;
+      System.arraycopy(liveSeqs, liveStart, a, 0, n);
+      liveSeqs = a; i -= liveStart; liveStart = 0; liveEnd = n;
+    }
+    System.arraycopy(liveSeqs, i, liveSeqs, i + 1, liveEnd - i);
+    liveSeqs[i] = seq; liveEnd++;
+  }
+  /** Makes all stored messages live again (after changing a setting that affects which messages are visible). */
+  protected void resetLive() {
+    liveStart = liveEnd = 0;
+    for (int i = 0; i < msgs.size(); i++) addLive(msgs.firstSeq + i);
+  }
 
   public TComponent.Dimension getMinimumSize() {
     return new TComponent.Dimension(100, fancy ? 100 : msgs.isEmpty() ? 0 : fnsize + 1.25f*fnsize*(msgs.size() - 1)); }
@@ -205,15 +369,43 @@ public class TConsole extends TComponent {
          + ((secs > 0) ? secs + " second" + ((secs == 1) ? "" : "s") + "" : "");
   }
 
+  /** Queues msg for the console.  This can be called from any thread: the message is stored by the
+   * animation thread at the beginning of the next frame (immediately if called on the animation thread,
+   * which includes setup(): see TransparentGUI.isFrameThread). */
   protected Message log(Message msg) {
-    if (msgprog != null) { gui.app.println(" [...]"); msgprog = null; }  // clean-up unfinished progress logging
+    pendingMsgs.offer(msg);
+    if (gui.isFrameThread()) drain(); else scheduleDrain();
+    return msg;
+  }
+  protected void scheduleDrain() { if (drainScheduled.compareAndSet(false, true)) gui.invokeLater(drainTask); }
+  /** Stores all queued messages (animation thread only). */
+  protected void drain() {
+    drainScheduled.set(false);  // anything logged from now on schedules another drain
+    Message msg;
+    while ((msg = pendingMsgs.poll()) != null)
+      append(msg);
+    updateLiveProgress();
+  }
+  protected void append(Message msg) {
+    if (stdoutProgress != null) {  // clean-up unfinished progress logging
+      print(" [...]\n"); msgprog.compareAndSet(stdoutProgress, null); stdoutProgress = null; }
     String msgstr = msg.toString() + "\n";
     if (msg.hasProgress()) msgstr = msgstr.substring(0, msgstr.length() - 4);  // strip " 0%\n"
-    gui.app.print(msgstr);
-    msgs.add(msg); if (!fancy) invalidate();
+    print(msgstr);
+    msgs.add(msg); addLive(msg.seq); if (!fancy) invalidate();
+    repaint();
+    if (msg.hasActiveProgress()) { liveProgress.add(msg); stdoutProgress = msg; }
     if (!msg.hasProgress()) msg.setExitTime(msg.t0);
-    if (msgs.size() > BUFFER_SIZE) msgs.remove(0);
-    return msg;
+  }
+  /** Copies the progress values of active progress messages into the store (animation thread only). */
+  protected void updateLiveProgress() {
+    for (int i = liveProgress.size() - 1; i >= 0; i--) {
+      Message msg = liveProgress.get(i);
+      if (!msg.hasActiveProgress()) { liveProgress.remove(i); continue; }
+      float lastProgress = msg.progress;
+      msg.progress = msg.getProgress();
+      if (msg.progress != lastProgress) { msg.storeProgress(); handleUpdateProgress(msg, lastProgress); }
+    }
   }
 
   public Message logError(String txt) { return log(new Message(MSG_ERROR, txt)); }
@@ -224,37 +416,54 @@ public class TConsole extends TComponent {
   public Message logNote(String txt) { return log(new Message(MSG_NOTE, txt)); }
   public Message logDebug(String txt) { return log(new Message(MSG_DEBUG, txt)); }
 
-  public Message logProgress(String txt) { return msgprog = log(new Message(MSG_NOTE, txt, true)); }
+  public Message logProgress(String txt) {
+    Message msg = new Message(MSG_NOTE, txt, true);
+    msgprog.set(msg);  // before log(), which might already replace it if the message is stored immediately
+    log(msg);
+    return msg;
+  }
   // short-cuts to updating the last progress message
-  public void updateProgress(float val) { if (msgprog != null) msgprog.updateProgress(val); }
-  public void updateProgress(float val, float maxval) { if (msgprog != null) msgprog.updateProgress(val, maxval); }
-  public void finishProgress() { if (msgprog != null) msgprog.finishProgress(); }
-  public void finishProgress(String addText) { if (msgprog != null) msgprog.finishProgress(addText); }
-  public void abortProgress() { if (msgprog != null) msgprog.abortProgress(); }
+  public void updateProgress(float val) { Message msg = msgprog.get(); if (msg != null) msg.updateProgress(val); }
+  public void updateProgress(float val, float maxval) { Message msg = msgprog.get(); if (msg != null) msg.updateProgress(val, maxval); }
+  public void finishProgress() { Message msg = msgprog.get(); if (msg != null) msg.finishProgress(); }
+  public void finishProgress(String addText) { Message msg = msgprog.get(); if (msg != null) msg.finishProgress(addText); }
+  public void abortProgress() { Message msg = msgprog.get(); if (msg != null) msg.abortProgress(); }
   public Message abortProgress(Throwable e) { return abortProgress(prettyThrow(e, true)); }
   public Message abortProgress(String error, Throwable e) { return abortProgress(error + prettyThrow(e)); }
   public Message abortProgress(String error) {
-    TConsole.Message prog = msgprog;
-    if (msgprog != null) msgprog.abortProgress();
-    TConsole.Message err = logError(error);
-    err.tE = prog.tE = PApplet.max(err.tE, prog.tE);
+    final TConsole.Message prog = msgprog.get();
+    final TConsole.Message err = new Message(MSG_ERROR, error);
+    // abort and log together on the animation thread, so that no other message can get in between
+    // (it would close the progress line on standard output before " -- aborted" is printed)
+    Runnable r = new Runnable() { public void run() {
+      if (prog != null) {
+        if (prog.seq == -1) drain();  // the progress message itself has not been stored yet
+        prog.abortProgress();
+      }
+      log(err);
+      if (prog != null) {  // both messages shall fade out together
+        err.tE = prog.tE = PApplet.max(err.tE, prog.tE); prog.storeExitTime(); err.storeExitTime(); }
+    } };
+    if (gui.isFrameThread()) r.run(); else gui.invokeLater(r);
     return err;
   }
-  // the following functions are called by Message when progress updates happen, so that TConsole can update standard output
+  // the following functions are called on the animation thread when progress updates happen, so that TConsole can update standard output
   protected void handleUpdateProgress(Message msg, float lastProgress) {
-    if (msg != msgprog) return;  // not our business anymore
-    if ((int)(10*msgprog.progress) != (int)(10*lastProgress))
-      gui.app.print(" " + (int)(100*msgprog.progress) + "%");
+    if (msg != stdoutProgress) return;  // not our business anymore
+    if ((int)(10*msg.progress) != (int)(10*lastProgress))
+      print(" " + (int)(100*msg.progress) + "%");
   }
   protected void handleFinishProgress(Message msg) {
-    if (msg != msgprog) return;  // not our business anymore
-    gui.app.println(" -- " + minsec(msgprog.t1 - msgprog.t0));
-    msgprog = null;
+    msgprog.compareAndSet(msg, null);
+    if (msg != stdoutProgress) return;  // not our business anymore
+    print(" -- " + minsec(msg.t1 - msg.t0) + "\n");
+    stdoutProgress = null;
   }
   protected void handleAbortProgress(Message msg) {
-    if (msg != msgprog) return;  // not our business anymore
-    gui.app.println(" -- aborted");
-    msgprog = null;
+    msgprog.compareAndSet(msg, null);
+    if (msg != stdoutProgress) return;  // not our business anymore
+    print(" -- aborted\n");
+    stdoutProgress = null;
   }
 
   public Message getLastMessage() { return (msgs.size() > 0) ? msgs.lastElement() : null; }
@@ -276,33 +485,59 @@ public class TConsole extends TComponent {
     return name + ": " + t.getMessage();
   }
 
+  /** Returns the y coordinate above which messages are not visible. */
+  protected float getMessageTop() { return bounds.y + padding.top + (showDebug ? 2*fnsize : 0); }
+
+  /** Returns true if the i-th oldest message is invisible and will stay so until it is changed. */
+  protected boolean isFadedOut(int i, int t) {
+    int s = msgs.slot(i);
+    if ((msgs.type[s] == MSG_DEBUG) && !showDebug) return true;
+    return !persistent && ((msgs.type[s] & MSG_STICKY) == 0) &&
+      ((t > msgs.tE[s]) || ((msgs.type[s] & MSG_REVOKED) > 0)) && (msgs.a[s] < .002f);
+  }
+
   protected float drawMessage(PGraphics g, Message msg, float x, float y) {
     if (Float.isNaN(msg.y*msg.a)) { msg.y = y; msg.a = 33/255.f; }  // initial message position is at target position
     float ta = (((gui.app.millis() > msg.tE) || msg.isRevoked()) && !persistent) ? 0 : 1;
     msg.a += 3*(ta - msg.a)*PApplet.min(gui.dt, 1.f/3);
     msg.y += 3*(y - msg.y)*PApplet.min(gui.dt, 1.f/3);
-    float y0 = bounds.y + padding.top + (showDebug ? 2*fnsize : 0);
+    if ((PApplet.abs(ta - msg.a) > .002f) || (PApplet.abs(y - msg.y) > .1f) || msg.hasActiveProgress())  // still fading or moving
+      animating = true;
+    else if ((ta > 0) && (msg.tE != Integer.MAX_VALUE) && !persistent)  // will start fading later
+      nextExit = PApplet.min(nextExit, msg.tE);
+    float y0 = getMessageTop();
     float y1 = y0 + 5*fnsize;
     float a = 255*msg.a*(fancy ? PApplet.max(0, PApplet.min(1, (msg.y - y0)/(y1 - y0))) : 1);
     if (!fancy) {
       msg.a = ta; a = 255*msg.a;
-      msg.y = y; if (y - g.textAscent() < y0) return 255*msg.a; }
+      msg.y = y; if (y - gui.textMetrics.ascent(fnNorm) < y0) return 255*msg.a; }
     if (a < 1) return a;
     // draw message text
-    g.noStroke();
+    TRenderState rs = gui.renderState(g);
+    rs.noStroke();
+    PFont fn = fnNorm;
     switch (msg.type & 255) {
-      case MSG_ERROR: g.fill(200, 0, 0, a); g.textFont(fnBold); break;
-      case MSG_WARNING: g.fill(200, 0, 0, a); g.textFont(fnNorm); break;
-      case MSG_INFO: g.fill(0, a); g.textFont(fnBold); break;
-      case MSG_NOTE: g.fill(0, a); g.textFont(fnNorm); break;
-      case MSG_DEBUG: g.fill(0, .75f*a); g.textFont(fnNorm); break;
+      case MSG_ERROR: rs.fill(0xffc80000, a); fn = fnBold; break;
+      case MSG_WARNING: rs.fill(0xffc80000, a); break;
+      case MSG_INFO: rs.fill(0xff000000, a); fn = fnBold; break;
+      case MSG_NOTE: rs.fill(0xff000000, a); break;
+      case MSG_DEBUG: rs.fill(0xff000000, .75f*a); break;
     }
-    if (msg.isRevoked()) g.fill(127, a);
+    rs.textFont(fn);
+    TTextMetrics tm = gui.textMetrics;
+    if (msg.isRevoked()) rs.fill(0xff7f7f7f, a);
     String text = msg.text;
     float progbarWidth = msg.hasActiveProgress() ? progbarwidth : 0;  // stupid var names...
-    float progbarSpace = msg.hasActiveProgress() ? g.textWidth(" ") : 0;
-    while ((g.textWidth(text) > bounds.width - padding.left - padding.right) && (text.length() >= 2)) {
-      text = text.substring(0, text.length()-2) + "\u2026";  // shorten and add ellipsis
+    float progbarSpace = msg.hasActiveProgress() ? tm.width(fn, ' ') : 0;
+    float maxWidth = bounds.width - padding.left - padding.right;
+    if ((tm.width(fn, text) > maxWidth) && (text.length() >= 2)) {
+      // shorten and add ellipsis (find the longest prefix that fits using the glyph advances)
+      float ellipsis = tm.width(fn, '\u2026');
+      int len = text.length() - 2;
+      float w = tm.width(fn, text, 0, len);
+      while ((w + ellipsis > maxWidth) && (len > 0))
+        w -= tm.width(fn, text.charAt(--len));
+      text = text.substring(0, len) + "\u2026";
       if (msg.hasActiveProgress()) { progbarWidth = 50; progbarSpace = 0; }  // cut down on the progbar
     }
     float textX = (align == ALIGN_LEFT)   ? x :
@@ -310,11 +545,11 @@ public class TConsole extends TComponent {
                                             x - (progbarWidth + progbarSpace);
     g.text(text, textX, msg.y);
     if (msg.isRevoked()) {  // strike-through
-      float tw = g.textWidth(text);
+      float tw = tm.width(fn, text);
       float textX1 = textX - 3; if (align != ALIGN_LEFT) textX1 -= tw/2; if (align == ALIGN_RIGHT) textX1 -= tw/2;
       float textX2 = textX + 3; if (align != ALIGN_RIGHT) textX2 += tw/2; if (align == ALIGN_LEFT) textX2 += tw/2;
-      float textYm = y - g.textDescent() - g.textAscent()/3;
-      g.stroke(127, a);// g.strokeWeight(.5f);
+      float textYm = y - tm.descent(fn) - tm.ascent(fn)/3;
+      rs.stroke(0xff7f7f7f, a);// g.strokeWeight(.5f);
       g.line(textX1, textYm, textX2, textYm);// g.strokeWeight(1);
     }
     // draw message's progress bar, if applicable
@@ -325,8 +560,8 @@ public class TConsole extends TComponent {
           imgProgBar.pixels[py*progbarwidth + px] =
             (gui.app.random(1) < msg.progress) ? gui.app.color(0, a) : gui.app.color(0, 0);
       imgProgBar.updatePixels();
-      float progbarX = (align == ALIGN_LEFT)   ? x + g.textWidth(text) + progbarSpace :
-                       (align == ALIGN_CENTER) ? x - (progbarWidth + progbarSpace)/2 + g.textWidth(text)/2 :
+      float progbarX = (align == ALIGN_LEFT)   ? x + tm.width(fn, text) + progbarSpace :
+                       (align == ALIGN_CENTER) ? x - (progbarWidth + progbarSpace)/2 + tm.width(fn, text)/2 :
                                                  x - progbarWidth;
       g.image(imgProgBar, progbarX, msg.y - progbarheight + 1, progbarWidth, progbarheight);
     }
@@ -338,34 +573,60 @@ public class TConsole extends TComponent {
 
   public void draw(PGraphics g) {
     super.draw(g);
+    animating = showDebug;  // fps display needs to be updated all the time
+    nextExit = Integer.MAX_VALUE;
+    updateLiveProgress();
+    TRenderState rs = gui.renderState(g);
     // draw messages
     if (!msgs.isEmpty()) {
       float lambda = .001f;
-      g.textAlign(align, g.BASELINE);
+      rs.textAlign(align, PGraphics.BASELINE);
       float x = (align == ALIGN_LEFT)   ? bounds.x + padding.left :
                 (align == ALIGN_CENTER) ? bounds.x + bounds.width/2 :
                                           bounds.x + bounds.width - padding.right;
       float y = bounds.y + bounds.height - padding.bottom;
-      g.imageMode(g.CORNER);
+      rs.imageMode(PGraphics.CORNER);
       float lastMessageAlpha = 0;
-      for (int i = msgs.size() - 1; i >= 0; i--, y -= (lastMessageAlpha > 32) ? 1.25f*fnsize : 0)
-        if ((msgs.get(i).type != MSG_DEBUG) || showDebug)
-          lastMessageAlpha = drawMessage(g, msgs.get(i), x, y);
+      // Only the messages in the live index can be visible.  Faded-out messages do not take up space, so
+      // skipping them does not move anything; they leave the index here and rejoin it when they are changed
+      // (see Message.storedSlot).  Messages above the top are skipped as well, unless they might slide down
+      // again when newer messages fade out (fancy, non-persistent).
+      float y0 = getMessageTop(), ascent = gui.textMetrics.ascent(fnNorm);
+      int t = gui.app.millis();
+      int k = liveEnd - 1, w = liveEnd;  // messages that stay live are moved up to liveSeqs[w]
+      boolean evicted = false;
+      for (; k >= liveStart; k--, y -= (lastMessageAlpha > 32) ? 1.25f*fnsize : 0) {
+        long seq = liveSeqs[k];
+        if (seq < msgs.firstSeq) { evicted = true; break; }  // this and all older messages have left the history
+        int i = (int)(seq - msgs.firstSeq);
+        if (!fancy && (y - ascent < y0)) break;  // this and all older messages are above the top
+        if ((msgs.type[msgs.slot(i)] != MSG_DEBUG) || showDebug) {
+          if (fancy && persistent && (y < y0) && (msgs.y[msgs.slot(i)] <= y0)) break;  // settled above the top
+          lastMessageAlpha = drawMessage(g, msgs.view(i, msgView), x, y);
+          msgs.setAnimation(i, msgView.y, msgView.a);
+        }
+        if (!isFadedOut(i, t)) liveSeqs[--w] = seq;
+      }
+      int rest = evicted ? 0 : k + 1 - liveStart;  // older live messages the loop did not get to
+      if ((w != k + 1) || evicted) {
+        System.arraycopy(liveSeqs, liveStart, liveSeqs, w - rest, rest);
+        liveStart = w - rest;
+      }
     }
     // draw memory usage and fps
     if (showDebug) {
-      g.noStroke();
+      rs.noStroke();
       float max = Runtime.getRuntime().maxMemory();
       float alloc = 50*Runtime.getRuntime().totalMemory()/max;
       float free = 50*Runtime.getRuntime().freeMemory()/max;
       max = 50;
       float x = bounds.x + bounds.width - padding.right;
       float y = bounds.y + padding.top;
-      g.rectMode(g.CORNER);
-      g.fill(0, 150, 0); g.rect(x - max, y, max, .5f*fnsize);
-      g.fill(0, 200, 0); g.rect(x - max, y, alloc, .5f*fnsize);
-      g.fill(200, 0, 0); g.rect(x - max, y, (alloc - free), .5f*fnsize);
-      g.fill(0); g.textAlign(g.RIGHT, g.TOP); g.textFont(fnNorm);
+      rs.rectMode(PGraphics.CORNER);
+      rs.fill(0xff009600); g.rect(x - max, y, max, .5f*fnsize);
+      rs.fill(0xff00c800); g.rect(x - max, y, alloc, .5f*fnsize);
+      rs.fill(0xffc80000); g.rect(x - max, y, (alloc - free), .5f*fnsize);
+      rs.fill(0xff000000); rs.textAlign(PGraphics.RIGHT, PGraphics.TOP); rs.textFont(fnNorm);
       String str = Math.round(gui.app.frameRate) + " fps";
       int t = gui.app.millis();
       if (!showMillis && (t - tLast > 250)) showMillis = true;
@@ -374,12 +635,14 @@ public class TConsole extends TComponent {
       g.text(str, x, y + .6f*fnsize);
       tLast = t;
     }
+    if (animating) repaint();
+    else if (nextExit != Integer.MAX_VALUE) repaintAt(nextExit + 1);  // no need to draw every frame until then
   }
 
   public String toString() {
     String res = "";
-    for (Message msg : msgs)
-      res += msg.toString() + "\n";
+    for (int i = 0; i < msgs.size(); i++)
+      res += msgs.get(i).toString() + "\n";
     return res;
   }
 }
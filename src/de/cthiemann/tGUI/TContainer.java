@@ -20,11 +20,23 @@
 
 package de.cthiemann.tGUI;
 import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+import java.awt.Graphics2D;
+import java.awt.Shape;
 import java.util.Vector;
 
 public class TContainer extends TComponent {
   protected Vector<TComponent> components = new Vector<TComponent>();
   protected TLayoutManager layout = null;
+  protected boolean clipChildren = false;  // if true, children are not drawn outside of this container's bounds
+  protected TDisplayList borderDisplayList = null;  // recorded border (if segmented, displayList only holds the background)
+
+  // uniform grid over the children's bounds for hit testing (only used for containers with many children)
+  protected static final int INDEX_THRESHOLD = 16;
+  protected boolean indexValid = false;
+  protected int[][] index = null;  // indices of the children overlapping each grid cell, in ascending order
+  protected int indexCols, indexRows;
+  protected float indexX, indexY, indexCellWidth, indexCellHeight;
 
   public TContainer(TransparentGUI gui) {
     super(gui);
@@ -50,19 +62,54 @@ public class TContainer extends TComponent {
     comp.parent = this;
     comp.hint = hint;
     if (index == -1) components.add(comp); else components.add(index, comp);
-    comp.invalidate();  // this will also invalidate this container
+    if (attached) comp.addNotify();
+    indexValid = false; gui.treeVersion++; gui.geometryVersion++; gui.stateVersion++;
+    comp.invalidate();  // this will also invalidate this container (and schedule comp for repainting)
   }
   public void remove(int index) { remove(components.get(index)); }
   public void remove(TComponent comp) {
+    comp.repaint();  // clear the area the component is covering now
+    if (comp.attached) comp.removeNotify();
     components.remove(comp);
-    comp.invalidate();  // this will also invalidate this container
+    comp.invalidate();  // this will also invalidate this container...
+    invalidate();  // ... unless comp's invalidation is deferred until after it has been detached (see TransparentGUI.beginBatch)
     comp.parent = null;
     comp.hint = null;
+    // bump the versions only now, so nothing can cache comp's state from before the detach under the new versions
+    indexValid = false; gui.treeVersion++; gui.geometryVersion++; gui.stateVersion++;
   }
   public void removeAll() { while (components.size() > 0) remove(0); }
 
+  public void addNotify() {
+    super.addNotify();
+    for (int i = 0; i < components.size(); i++)
+      components.get(i).addNotify();
+  }
+  public void removeNotify() {
+    for (int i = 0; i < components.size(); i++)
+      components.get(i).removeNotify();
+    super.removeNotify();
+  }
+
+  public boolean isClippingChildren() { return clipChildren; }
+  /** If enabled, children are culled against this container's bounds and (when drawing with
+   * JAVA2D) their drawing is clipped to the container's bounds. */
+  public void setClipChildren(boolean b) { if (clipChildren != b) { clipChildren = b; gui.invalidateDisplayLists(this); repaint(); } }
+
+  /** In display list mode, segmented containers record their background, each child, and their border
+   * separately, so that a repaint() only re-records the part that changed.  Subclasses which override
+   * draw() to paint anything else have to return false. */
+  protected boolean isSegmented() { return !clipChildren; }
+
   public TLayoutManager getLayout() { return layout; }
   public void setLayout(TLayoutManager layout) { this.layout = layout; invalidate(); }
+  public void invalidate() {
+    if ((gui != null) && gui.deferInvalidate(this)) return;
+    valid = false;  // a container looks the same after re-layouting (only its children might look different)
+    clearSizeCache();  // ... but its size depends on its children
+    if (tooltip != null) tooltip.invalidate();
+    invalidateParent();
+  }
   public void doLayout() { if (layout != null) layout.layoutContainer(this); }
   public void validate() {
     if (valid) return;  // nothing to do here
@@ -70,6 +117,7 @@ public class TContainer extends TComponent {
     for (int i = 0; i < components.size(); i++)
       if (components.get(i).isVisible())
         components.get(i).validate();
+    indexValid = false;  // rebuilt on the next hit test
     valid = true;
   }
   public void invalidateAll() {
@@ -90,9 +138,13 @@ public class TContainer extends TComponent {
 
   public TComponent getComponentAt(float x, float y) {
     // query child components, front-most (last added) child first
-    for (int i = components.size() - 1; i >= 0; i--) {
-      if (!components.get(i).isVisible()) continue;
-      TComponent result = components.get(i).getComponentAt(x - bounds.x, y - bounds.y);
+    // (children not containing the point are skipped, including their subtrees)
+    float cx = x - bounds.x, cy = y - bounds.y;
+    int[] cell = getIndexCell(cx, cy);
+    for (int k = (cell != null) ? cell.length - 1 : components.size() - 1; k >= 0; k--) {
+      TComponent c = components.get((cell != null) ? cell[k] : k);
+      if (!c.isVisible() || !c.bounds.contains(cx, cy)) continue;
+      TComponent result = c.getComponentAt(cx, cy);
       if (result != null)
         return result;
     }
@@ -100,8 +152,71 @@ public class TContainer extends TComponent {
     return super.getComponentAt(x, y);
   }
 
-  public void transferFocus() { gui.requestFocus(getFocusableComponentAfter(this)); }
-  public void transferFocusBackward() { gui.requestFocus(getFocusableComponentBefore(this)); }
+  /** Returns true if any visible child in front of the i-th child contains (x, y) (given in this container's coordinate system). */
+  boolean isCoveredAt(int i, float x, float y) {
+    int[] cell = getIndexCell(x, y);
+    for (int k = (cell != null) ? cell.length - 1 : components.size() - 1; k >= 0; k--) {
+      int j = (cell != null) ? cell[k] : k;
+      if (j <= i) return false;
+      TComponent c = components.get(j);
+      if (c.isVisible() && c.bounds.contains(x, y)) return true;
+    }
+    return false;
+  }
+
+  /** Returns the indices of all children that might contain (x, y) (in ascending order), or null
+   * if this container has too few children to be indexed (i.e., all children have to be checked). */
+  protected int[] getIndexCell(float x, float y) {
+    if (components.size() < INDEX_THRESHOLD) return null;
+    if (!indexValid) buildIndex();
+    int col = (int)Math.floor((x - indexX)/indexCellWidth), row = (int)Math.floor((y - indexY)/indexCellHeight);
+    if ((col < 0) || (col >= indexCols) || (row < 0) || (row >= indexRows)) return EMPTY_CELL;
+    return index[row*indexCols + col];
+  }
+  private static final int[] EMPTY_CELL = new int[0];
+
+  protected void buildIndex() {
+    int n = components.size();
+    float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE, x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      TComponent.Rectangle b = components.get(i).bounds;
+      x0 = Math.min(x0, b.x); x1 = Math.max(x1, b.x + b.width);
+      y0 = Math.min(y0, b.y); y1 = Math.max(y1, b.y + b.height);
+    }
+    indexCols = indexRows = Math.max(1, (int)Math.ceil(Math.sqrt(n)));  // roughly one child per cell if they are evenly spread
+    indexX = x0; indexY = y0;
+    indexCellWidth = Math.max(1e-3f, (x1 - x0)/indexCols);
+    indexCellHeight = Math.max(1e-3f, (y1 - y0)/indexRows);
+    // first pass counts the children per cell, second pass fills the cells
+    int[] counts = new int[indexCols*indexRows];
+    index = new int[counts.length][];
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < n; i++) {
+        TComponent.Rectangle b = components.get(i).bounds;
+        // the boundary is inclusive (see Rectangle.contains), so neighboring cells are included at exact cell edges
+        int c0 = Math.max(0, (int)Math.floor((b.x - indexX)/indexCellWidth)), c1 = Math.min(indexCols - 1, (int)Math.floor((b.x + b.width - indexX)/indexCellWidth));
+        int r0 = Math.max(0, (int)Math.floor((b.y - indexY)/indexCellHeight)), r1 = Math.min(indexRows - 1, (int)Math.floor((b.y + b.height - indexY)/indexCellHeight));
+        for (int r = r0; r <= r1; r++)
+          for (int c = c0; c <= c1; c++)
+            if (pass == 0) counts[r*indexCols + c]++;
+            else index[r*indexCols + c][counts[r*indexCols + c]++] = i;
+      }
+      if (pass == 0)
+        for (int k = 0; k < counts.length; k++) { index[k] = new int[counts[k]]; counts[k] = 0; }
+    }
+    indexValid = true;
+  }
+
+  public void transferFocus() {
+    TWindow win = getWindow();
+    TComponent c = (win != null) ? win.getFocusTraversalNeighbor(this, 1) : null;
+    gui.requestFocus((c != null) ? c : getFocusableComponentAfter(this));
+  }
+  public void transferFocusBackward() {
+    TWindow win = getWindow();
+    TComponent c = (win != null) ? win.getFocusTraversalNeighbor(this, -1) : null;
+    gui.requestFocus((c != null) ? c : getFocusableComponentBefore(this));
+  }
 
   TComponent getFocusableComponentAfter(TComponent comp) {
     int index = components.indexOf(comp);  // if comp == this, we will start with checking components[0]
@@ -168,12 +283,27 @@ public class TContainer extends TComponent {
   public void draw(PGraphics g) {
     if (!valid) validate();
     drawBackground(g);
-    g.pushMatrix();
-    g.translate(bounds.x, bounds.y);
-    for (int i = 0; i < components.size(); i++)
-      if (components.get(i).isVisible())
-        components.get(i).draw(g);
-    g.popMatrix();
+    // children are culled against the current clip rectangle (translated into our coordinate system)
+    TComponent.Rectangle clip = gui.drawClip;
+    float cx = clip.x, cy = clip.y, cw = clip.width, ch = clip.height;
+    if (clipChildren) clip.intersect(bounds.x, bounds.y, bounds.width, bounds.height);
+    clip.x -= bounds.x; clip.y -= bounds.y;
+    if (!clip.isEmpty()) {
+      g.pushMatrix();
+      g.translate(bounds.x, bounds.y);
+      Graphics2D g2 = (clipChildren && (g instanceof PGraphicsJava2D)) ? ((PGraphicsJava2D)g).g2 : null;
+      Shape g2clip = null;
+      if (g2 != null) { g2clip = g2.getClip(); g2.clip(new java.awt.geom.Rectangle2D.Float(0, 0, bounds.width, bounds.height)); }
+      for (int i = 0; i < components.size(); i++) {
+        TComponent c = components.get(i);
+        if (c.isVisible() &&  // add a bit of slack to account for borders and anti-aliasing
+            clip.intersects(c.bounds.x - 3, c.bounds.y - 3, c.bounds.width + 6, c.bounds.height + 6))
+          c.draw(g);
+      }
+      if (g2 != null) g2.setClip(g2clip);
+      g.popMatrix();
+    }
+    clip.set(cx, cy, cw, ch);
     drawBorder(g);
     //drawLayout(g);
   }
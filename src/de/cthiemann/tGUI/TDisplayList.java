@@ -0,0 +1,259 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of TransparentGUI, a GUI library for Processing.
+ *
+ * TransparentGUI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransparentGUI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransparentGUI.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cthiemann.tGUI;
+import processing.core.PApplet;
+import processing.core.PFont;
+import processing.core.PGraphics;
+import processing.core.PImage;
+import java.util.Arrays;
+
+/** A graphics object that records primitive draw operations (rectangles, ellipses, shapes/lines,
+ * text lines, and images) into a compact list instead of rendering them.  The list can be replayed
+ * onto any PGraphics object without allocating memory.  All coordinates are recorded with the
+ * current translation applied and all alignment/mode settings resolved, so replaying does not depend
+ * on the render state of the target.  Rotation and scaling are not supported.
+ * Text measurements are delegated to the target graphics object given to beginRecord().
+ * TransparentGUI keeps one list per segment of the component tree (see TransparentGUI.drawSegments)
+ * and only re-records the segments whose components have called repaint(). */
+public class TDisplayList extends PGraphics {
+  public static final int RECT = 0;
+  public static final int ELLIPSE = 1;
+  public static final int SHAPE = 2;
+  public static final int TEXT = 3;
+  public static final int IMAGE = 4;
+  protected static final String[] OP_NAMES = { "RECT", "ELLIPSE", "SHAPE", "TEXT", "IMAGE" };
+
+  protected TransparentGUI gui;
+  protected PGraphics target = null;  // used for text measurement while recording
+
+  // recorded operations (fill and stroke colors are 0 if disabled)
+  protected int n = 0;
+  protected int[] type = new int[64], kind = new int[64], fillc = new int[64], strokec = new int[64];
+  protected float[] weight = new float[64], fontSize = new float[64];
+  protected PFont[] font = new PFont[64];
+  protected Object[] ref = new Object[64];  // String for TEXT, PImage for IMAGE
+  protected int[] argStart = new int[64], argCount = new int[64];
+  protected float[] args = new float[256];
+  protected int nargs = 0;
+  protected long[] sortKeys = new long[64];  // re-used by reorder()
+  protected PFont[] fontRanks = new PFont[8];  // re-used by reorder()
+  protected static final long INDEX_MASK = (1L << 21) - 1;
+
+  // current translation while recording
+  protected float tx = 0, ty = 0;
+  protected float[] matrixStack = new float[32];
+  protected int matrixStackDepth = 0;
+
+  public TDisplayList(TransparentGUI gui) {
+    this.gui = gui;
+    setParent(gui.app);
+    setPrimary(false);
+  }
+
+  public int size() { return n; }
+  public int getType(int i) { return type[i]; }
+
+  public void beginRecord(PGraphics target) {
+    this.target = target;
+    n = nargs = 0;
+    tx = ty = 0; matrixStackDepth = 0;
+    style(target.getStyle());  // start out with the same render state as if drawing directly
+  }
+  public void endRecord() {
+    target = null;
+    Arrays.fill(ref, n, ref.length, null);  // release references to stale strings and images
+    Arrays.fill(font, n, font.length, null);
+  }
+
+  public void replay(PGraphics g) { replay(g, 0, 0); }
+  /** Draws all recorded operations onto g, shifted by (dx, dy). */
+  public void replay(PGraphics g, float dx, float dy) {
+    TRenderState rs = gui.renderState(g);
+    g.noTint();
+    for (int i = 0; i < n; i++) {
+      if ((fillc[i] >>> 24) != 0) rs.fill(fillc[i]); else rs.noFill();
+      if ((strokec[i] >>> 24) != 0) { rs.stroke(strokec[i]); rs.strokeWeight(weight[i]); } else rs.noStroke();
+      int a = argStart[i];
+      switch (type[i]) {
+        case RECT:
+          rs.rectMode(CORNERS);
+          g.rect(args[a] + dx, args[a+1] + dy, args[a+2] + dx, args[a+3] + dy);
+          break;
+        case ELLIPSE:
+          rs.ellipseMode(CORNER);
+          g.ellipse(args[a] + dx, args[a+1] + dy, args[a+2], args[a+3]);
+          break;
+        case SHAPE:
+          g.beginShape(kind[i] & 0xffff);
+          for (int j = a; j < a + argCount[i]; j += 2)
+            g.vertex(args[j] + dx, args[j+1] + dy);
+          g.endShape(kind[i] >>> 16);
+          break;
+        case TEXT:
+          rs.textFont(font[i]);
+          if (g.textSize != fontSize[i]) g.textSize(fontSize[i]);
+          rs.textAlign(LEFT, BASELINE);
+          g.text((String)ref[i], args[a] + dx, args[a+1] + dy);
+          break;
+        case IMAGE:
+          rs.imageMode(CORNERS);
+          g.image((PImage)ref[i], args[a] + dx, args[a+1] + dy, args[a+2] + dx, args[a+3] + dy,
+                  (int)args[a+4], (int)args[a+5], (int)args[a+6], (int)args[a+7]);
+          break;
+      }
+    }
+  }
+
+  /** Moves all text operations behind all other operations and groups them by font and fill color.
+   * This changes the drawing order, so it must only be used if text does not overlap other content.
+   * Sorts in place without allocating memory (unless the list has grown since the last call). */
+  public void reorder() {
+    if (sortKeys.length < n) sortKeys = new long[type.length];
+    // sort key: text flag (bit 62) | font rank (bits 53-61) | fill color (bits 21-52) | original index (bits 0-20);
+    // the original index makes the sort stable, so non-text ops keep their order
+    int nfonts = 0;
+    for (int i = 0; i < n; i++) {
+      if (type[i] != TEXT) { sortKeys[i] = i; continue; }
+      int rank = 0;
+      while ((rank < nfonts) && (fontRanks[rank] != font[i])) rank++;
+      if (rank == nfonts) {
+        if (nfonts == fontRanks.length) fontRanks = (PFont[])PApplet.expand(fontRanks);
+        fontRanks[nfonts++] = font[i];
+      }
+      sortKeys[i] = (1L << 62) | ((long)Math.min(rank, 511) << 53) | ((fillc[i] & 0xffffffffL) << 21) | i;
+    }
+    for (int i = 0; i < nfonts; i++) fontRanks[i] = null;  // don't keep fonts alive
+    if (n > (1 << 21)) return;  // too many ops to encode their index (should never happen)
+    Arrays.sort(sortKeys, 0, n);
+    // permute all op arrays in place by following the cycles of the permutation (op i takes the op at index perm(i))
+    for (int i = 0; i < n; i++) {
+      int j = (int)(sortKeys[i] & INDEX_MASK);
+      if (j == i) continue;
+      int type0 = type[i], kind0 = kind[i], fillc0 = fillc[i], strokec0 = strokec[i], argStart0 = argStart[i], argCount0 = argCount[i];
+      float weight0 = weight[i], fontSize0 = fontSize[i]; PFont font0 = font[i]; Object ref0 = ref[i];
+      int k = i;
+      while (j != i) {
+        type[k] = type[j]; kind[k] = kind[j]; fillc[k] = fillc[j]; strokec[k] = strokec[j];
+        argStart[k] = argStart[j]; argCount[k] = argCount[j];
+        weight[k] = weight[j]; fontSize[k] = fontSize[j]; font[k] = font[j]; ref[k] = ref[j];
+        sortKeys[k] = k;  // mark as done
+        k = j; j = (int)(sortKeys[k] & INDEX_MASK);
+      }
+      type[k] = type0; kind[k] = kind0; fillc[k] = fillc0; strokec[k] = strokec0; argStart[k] = argStart0; argCount[k] = argCount0;
+      weight[k] = weight0; fontSize[k] = fontSize0; font[k] = font0; ref[k] = ref0;
+      sortKeys[k] = k;
+    }
+  }
+
+  /** Returns one line per operation; useful for comparing frames. */
+  public String toString() {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < n; i++) {
+      sb.append(OP_NAMES[type[i]]);
+      sb.append(" fill=").append(Integer.toHexString(fillc[i]));
+      sb.append(" stroke=").append(Integer.toHexString(strokec[i])).append("/").append(weight[i]);
+      if (type[i] == SHAPE) sb.append(" kind=").append(kind[i] & 0xffff).append(" mode=").append(kind[i] >>> 16);
+      if (type[i] == TEXT) sb.append(" font=").append(font[i].getPostScriptName()).append("/").append(fontSize[i]).append(" \"").append(ref[i]).append("\"");
+      if (type[i] == IMAGE) sb.append(" image=").append(ref[i].getClass().getName()).append("@").append(Integer.toHexString(System.identityHashCode(ref[i])));
+      for (int j = argStart[i]; j < argStart[i] + argCount[i]; j++)
+        sb.append((j == argStart[i]) ? " [" : ",").append(args[j]);
+      sb.append((argCount[i] > 0) ? "]\n" : "\n");
+    }
+    return sb.toString();
+  }
+
+  // recording
+
+  protected int addOp(int t) {
+    if (n == type.length) {
+      int size = 2*n;
+      type = PApplet.expand(type, size); kind = PApplet.expand(kind, size);
+      fillc = PApplet.expand(fillc, size); strokec = PApplet.expand(strokec, size);
+      weight = PApplet.expand(weight, size); fontSize = PApplet.expand(fontSize, size);
+      font = (PFont[])PApplet.expand(font, size); ref = (Object[])PApplet.expand(ref, size);
+      argStart = PApplet.expand(argStart, size); argCount = PApplet.expand(argCount, size);
+    }
+    type[n] = t; kind[n] = 0; ref[n] = null; font[n] = null; fontSize[n] = 0;
+    fillc[n] = fill ? fillColor : 0;
+    strokec[n] = stroke ? strokeColor : 0;
+    weight[n] = strokeWeight;
+    argStart[n] = nargs; argCount[n] = 0;
+    return n++;
+  }
+
+  protected void addArg(float v) {
+    if (nargs == args.length) args = PApplet.expand(args, 2*nargs);
+    args[nargs++] = v; argCount[n-1]++;
+  }
+
+  protected void addPoint(float x, float y) { addArg(x + tx); addArg(y + ty); }
+
+  public void pushMatrix() {
+    if (matrixStackDepth + 2 > matrixStack.length) matrixStack = PApplet.expand(matrixStack, 2*matrixStack.length);
+    matrixStack[matrixStackDepth++] = tx; matrixStack[matrixStackDepth++] = ty;
+  }
+  public void popMatrix() { ty = matrixStack[--matrixStackDepth]; tx = matrixStack[--matrixStackDepth]; }
+  public void translate(float x, float y) { tx += x; ty += y; }
+  public void resetMatrix() { tx = ty = 0; }
+
+  protected void rectImpl(float x1, float y1, float x2, float y2) {
+    addOp(RECT); addPoint(x1, y1); addPoint(x2, y2); }
+
+  protected void ellipseImpl(float x, float y, float w, float h) {
+    addOp(ELLIPSE); addPoint(x, y); addArg(w); addArg(h); }
+
+  protected boolean inShape = false;
+  protected float lastX, lastY;  // last vertex (without translation), for bezierVertex
+  public void beginShape(int kind) { addOp(SHAPE); this.kind[n-1] = kind; inShape = true; }
+  public void vertex(float x, float y) { if (inShape) { addPoint(x, y); lastX = x; lastY = y; } }
+  public void bezierVertex(float x1, float y1, float x2, float y2, float x3, float y3) {
+    float x0 = lastX, y0 = lastY;
+    for (int k = 1; k <= 8; k++) {
+      float t = k/8.f, u = 1 - t;
+      vertex(u*u*u*x0 + 3*u*u*t*x1 + 3*u*t*t*x2 + t*t*t*x3,
+             u*u*u*y0 + 3*u*u*t*y1 + 3*u*t*t*y2 + t*t*t*y3);
+    }
+  }
+  public void endShape(int mode) { if (inShape) { kind[n-1] |= mode << 16; inShape = false; } }
+  public void line(float x1, float y1, float x2, float y2) {
+    beginShape(LINES); vertex(x1, y1); vertex(x2, y2); endShape(); }
+
+  protected void imageImpl(PImage img, float x1, float y1, float x2, float y2, int u1, int v1, int u2, int v2) {
+    int i = addOp(IMAGE); ref[i] = img;
+    addPoint(x1, y1); addPoint(x2, y2); addArg(u1); addArg(v1); addArg(u2); addArg(v2);
+  }
+
+  protected void textLineImpl(char buffer[], int start, int stop, float x, float y) {
+    int i = addOp(TEXT); ref[i] = new String(buffer, start, stop - start);
+    font[i] = textFont; fontSize[i] = textSize;
+    addPoint(x, y);
+  }
+
+  // text measurement is done by the target graphics object, so that results are identical to direct drawing
+
+  protected void syncFont() {
+    if ((target.textFont != textFont) || (target.textSize != textSize))
+      target.textFont(textFont, textSize);
+  }
+  protected float textWidthImpl(char buffer[], int start, int stop) { syncFont(); return target.textWidth(buffer, start, stop); }
+  public float textAscent() { if (textFont == null) return super.textAscent(); syncFont(); return target.textAscent(); }
+  public float textDescent() { if (textFont == null) return super.textDescent(); syncFont(); return target.textDescent(); }
+}
@@ -35,7 +35,7 @@ public class TFlowLayout extends Object implements TLayoutManager {
     TComponent[] components = target.getComponents();
     for (int i = 0; i < components.length; i++) {
       if (!components[i].isVisible()) continue;
-      TComponent.Dimension d = components[i].getPreferredSize();
+      TComponent.Dimension d = components[i].getCachedPreferredSize();
       width += d.width + PApplet.max(spacing, components[i].getMarginLeft());  // we need components width plus the larger of the spacing the last component (or target) requested or this component's left margin
       height = PApplet.max(height, d.height + PApplet.max(components[i].getMarginTop(), target.getPaddingTop())
                                             + PApplet.max(components[i].getMarginBottom(), target.getPaddingBottom()));
@@ -50,7 +50,7 @@ public class TFlowLayout extends Object implements TLayoutManager {
     TComponent[] components = target.getComponents();
     for (int i = 0; i < components.length; i++) {
       if (!components[i].isVisible()) continue;
-      TComponent.Dimension d = components[i].getMinimumSize();
+      TComponent.Dimension d = components[i].getCachedMinimumSize();
       width += d.width;
       height = PApplet.max(height, d.height);
     }
@@ -75,7 +75,7 @@ public class TFlowLayout extends Object implements TLayoutManager {
     TComponent[] components = target.getComponents();
     for (int i = 0; i < components.length; i++) {
       if (!components[i].isVisible()) continue;
-      TComponent.Dimension d = components[i].getPreferredSize();
+      TComponent.Dimension d = components[i].getCachedPreferredSize();
       if (d.width > target.getWidth() - left) {
         alignComponents(target, rowStart, i,
                         target.getWidth() - left - PApplet.max(target.getPaddingRight(), components[i].getMarginRight()),
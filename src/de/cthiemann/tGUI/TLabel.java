@@ -42,27 +42,28 @@ public class TLabel extends TComponent {
   public void setText(String s) { text = s; invalidate(); }
 
   public int getAlignment() { return align; }
-  public void setAlignment(int align) { this.align = align; }
+  public void setAlignment(int align) { this.align = align; repaint(); }
   public void setAlignment(int align, int valign) { this.align = align; setVerticalAlignment(valign); }
   public int getVerticalAlignment() { return valign; }
-  public void setVerticalAlignment(int valign) { this.valign = valign; }
+  public void setVerticalAlignment(int valign) { this.valign = valign; repaint(); }
 
   public TComponent.Dimension getMinimumSize() {
     float maxWidth = 0;
-    gui.app.g.textFont(getFont());
+    PFont fn = getFont();
     String lines[] = PApplet.split(PApplet.trim(text), '\n');
     for (int i = 0; i < lines.length; i++)
-      maxWidth = PApplet.max(maxWidth, gui.app.g.textWidth(lines[i]));
-    float height = gui.app.g.textAscent() + gui.app.g.textDescent();
-    height = height + (lines.length - 1)*gui.app.g.textLeading;
+      maxWidth = PApplet.max(maxWidth, gui.textMetrics.width(fn, lines[i]));
+    float height = gui.textMetrics.height(fn);
+    height = height + (lines.length - 1)*gui.textMetrics.leading(fn);
     return new TComponent.Dimension(maxWidth, PApplet.ceil(height));
   }
 
   public void draw(PGraphics g) {
     super.draw(g);
-    g.noStroke();
-    g.textFont(getFont());
-    g.fill(getForeground());
+    TRenderState rs = gui.renderState(g);
+    rs.noStroke();
+    rs.textFont(getFont());
+    rs.fill(getForeground());
     /*g.textAlign(align, g.BASELINE);
     float x = bounds.x + padding.left;
     if (align != ALIGN_LEFT) {
@@ -74,8 +75,8 @@ public class TLabel extends TComponent {
     float h = g.textAscent() + g.textDescent();
     if (bounds.height - padding.top - padding.bottom > h)
       y -= (bounds.height - padding.top - padding.bottom - h)/2;*/
-    g.rectMode(g.CORNERS);
-    g.textAlign(align, valign);
+    rs.rectMode(PGraphics.CORNERS);
+    rs.textAlign(align, valign);
     g.text(text, bounds.x + padding.left, bounds.y + padding.top,
                  bounds.x + bounds.width - padding.right, bounds.y + bounds.height - padding.bottom);
   }
@@ -38,18 +38,21 @@ public class TPopupMenu extends TWindow {
     }
     public void draw(PGraphics g) {
       super.draw(g);
-      g.textFont(getFont());
-      g.stroke(getForeground()); g.noFill();
+      TRenderState rs = gui.renderState(g);
+      rs.textFont(getFont());
+      rs.stroke(getForeground()); rs.noFill();
       //
       float x0 = bounds.x + padding.left;
       float x1 = bounds.x + bounds.width - padding.right;
-      float x2 = bounds.x + bounds.width/2 - g.textWidth(text)/2 - 5;
-      float x3 = bounds.x + bounds.width/2 + g.textWidth(text)/2 + 5;
-      float y = bounds.y + bounds.height - padding.bottom - g.textDescent();
-      float h = g.textAscent() + g.textDescent();
+      TTextMetrics tm = gui.textMetrics;
+      float tw = tm.width(getFont(), text);
+      float x2 = bounds.x + bounds.width/2 - tw/2 - 5;
+      float x3 = bounds.x + bounds.width/2 + tw/2 + 5;
+      float y = bounds.y + bounds.height - padding.bottom - tm.descent(getFont());
+      float h = tm.height(getFont());
       if (bounds.height - padding.top - padding.bottom > h)
         y -= (bounds.height - padding.top - padding.bottom - h)/2;
-      y -= g.textAscent()/3;
+      y -= tm.ascent(getFont())/3;
       //
       if (text.length() == 0) {
         g.line(bounds.x + padding.left, bounds.y + bounds.height/2 - 1,
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of TransparentGUI, a GUI library for Processing.
+ *
+ * TransparentGUI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransparentGUI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransparentGUI.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cthiemann.tGUI;
+import processing.core.PFont;
+import processing.core.PGraphics;
+
+/** Drops render state changes which would not change anything.  The current state is read from the
+ * public fields of the PGraphics object, so the filtering stays correct if the application or a
+ * pushStyle()/popStyle() pair changes the state behind our back.  Only colors given as ARGB ints are
+ * filtered, because these map directly to the fillColor/strokeColor fields (independent of colorMode).
+ * Use TransparentGUI.renderState(g) to get an instance bound to the graphics object to draw on. */
+public class TRenderState extends Object {
+  protected PGraphics g = null;
+  protected boolean enabled = true;  // if false, all calls are passed through (for comparison)
+  protected long calls = 0, skipped = 0;  // statistics
+  protected PGraphics lastFontGraphics = null;  // PFont.size is not accessible, so we remember the text size resulting from textFont()
+  protected PFont lastFont = null;
+  protected float lastFontSize = -1;
+
+  public TRenderState bind(PGraphics g) { this.g = g; return this; }
+  public PGraphics getGraphics() { return g; }
+
+  public boolean isEnabled() { return enabled; }
+  public void setEnabled(boolean b) { enabled = b; }
+
+  public long getCallCount() { return calls; }
+  public long getSkippedCount() { return skipped; }
+  public void resetCounts() { calls = skipped = 0; }
+
+  protected boolean skip(boolean unchanged) {
+    calls++;
+    if (!enabled || !unchanged) return false;
+    skipped++;
+    return true;
+  }
+
+  // Processing interprets color ints without alpha which are small enough as gray values
+  protected boolean isGray(int rgb) { return ((rgb & 0xff000000) == 0) && (rgb <= g.colorModeX); }
+  // the color Processing will compute for fill(rgb, alpha) and stroke(rgb, alpha)
+  protected int withAlpha(int rgb, float alpha) {
+    if (alpha == g.colorModeA) return rgb;
+    return ((int)(((rgb >> 24) & 0xff)*(alpha/g.colorModeA)) << 24) | (rgb & 0x00ffffff);
+  }
+
+  public void textFont(PFont font) {
+    if (skip((g.textFont == font) && (lastFontGraphics == g) && (lastFont == font) && (g.textSize == lastFontSize))) return;
+    g.textFont(font);
+    lastFontGraphics = g; lastFont = font; lastFontSize = g.textSize;
+  }
+  public void textAlign(int align, int alignY) {
+    if (skip((g.textAlign == align) && (g.textAlignY == alignY))) return;
+    g.textAlign(align, alignY); }
+
+  public void fill(int rgb) {
+    if (skip(g.fill && !isGray(rgb) && (g.fillColor == rgb))) return;
+    g.fill(rgb); }
+  public void fill(int rgb, float alpha) {
+    if (skip(g.fill && !isGray(rgb) && (g.fillColor == withAlpha(rgb, alpha)))) return;
+    g.fill(rgb, alpha); }
+  public void noFill() { if (!skip(!g.fill)) g.noFill(); }
+
+  public void stroke(int rgb) {
+    if (skip(g.stroke && !isGray(rgb) && (g.strokeColor == rgb))) return;
+    g.stroke(rgb); }
+  public void stroke(int rgb, float alpha) {
+    if (skip(g.stroke && !isGray(rgb) && (g.strokeColor == withAlpha(rgb, alpha)))) return;
+    g.stroke(rgb, alpha); }
+  public void noStroke() { if (!skip(!g.stroke)) g.noStroke(); }
+  public void strokeWeight(float weight) { if (!skip(g.strokeWeight == weight)) g.strokeWeight(weight); }
+
+  public void rectMode(int mode) { if (!skip(g.rectMode == mode)) g.rectMode(mode); }
+  public void ellipseMode(int mode) { if (!skip(g.ellipseMode == mode)) g.ellipseMode(mode); }
+  public void imageMode(int mode) { if (!skip(g.imageMode == mode)) g.imageMode(mode); }
+}
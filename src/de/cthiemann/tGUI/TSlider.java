@@ -29,6 +29,14 @@ public class TSlider extends TComponent {
   protected float prefWidth = 0;
   protected float knobSize = 8;
   protected String command = null;
+  protected boolean adjusting = false;  // true if the last value change event was sent while the knob was being dragged
+  protected boolean valueChangePending = false;  // value changed but the event was not yet sent (when coalescing events)
+
+  /** Listener which is notified whenever the user changes the slider's value. */
+  public static interface ValueListener {
+    public void valueChanged(TSlider slider, int value, boolean adjusting);
+  }
+  protected ValueListener[] valueListeners = new ValueListener[0];
 
   public TSlider(TransparentGUI gui) { this(gui, null); }
   public TSlider(TransparentGUI gui, String cmd) { super(gui); clickable = true; setActionCommand(cmd); }
@@ -36,13 +44,20 @@ public class TSlider extends TComponent {
   public String getActionCommand() { return (command != null) ? command : "TSlider"; }
   public void setActionCommand(String s) { command = s; }
 
+  /** Returns true while an action event handler is notified about a value change during a drag
+   * which is still in progress (only if the GUI coalesces events, see TransparentGUI.setEventCoalescing). */
+  public boolean isValueAdjusting() { return adjusting; }
+
+  public void addValueListener(ValueListener l) { valueListeners = addListener(valueListeners, l); }
+  public void removeValueListener(ValueListener l) { valueListeners = removeListener(valueListeners, l); }
+
   public int getValue() { return value; }
-  public void setValue(int value) { this.value = value; }
+  public void setValue(int value) { this.value = value; repaint(); }
   public int getMinValue() { return min; }
-  public void setMinValue(int min) { this.min = min; }
+  public void setMinValue(int min) { this.min = min; repaint(); }
   public int getMaxValue() { return max; }
-  public void setMaxValue(int max) { this.max = max; }
-  public void setValueBounds(int min, int max) { this.min = min; this.max = max; }
+  public void setMaxValue(int max) { this.max = max; repaint(); }
+  public void setValueBounds(int min, int max) { this.min = min; this.max = max; repaint(); }
 
   public float getPreferredWidth() { return prefWidth; }
   public void setPreferredWidth(float width) { prefWidth = width; invalidate(); }
@@ -54,26 +69,48 @@ public class TSlider extends TComponent {
     if (gui.componentMouseClicked == this) {
       int oldvalue = value;
       float width = bounds.width - padding.left - padding.right - knobSize;
-      value = min + PApplet.round((e.getX() - getLocationOnScreen().x - padding.left - knobSize/2f)/width*(max - min));
+      value = min + PApplet.round((e.getX() - getScreenX() - padding.left - knobSize/2f)/width*(max - min));
       value = PApplet.max(min, PApplet.min(max, value));
-      if (value != oldvalue)
-        gui.fireActionEvent(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, getActionCommand() + "##valueChanged"));
+      if (value != oldvalue) {
+        repaint();
+        if (gui.isEventCoalescing()) { valueChangePending = true; gui.coalesce(this); }
+        else fireValueChanged(); }
+    }
+  }
+
+  protected void fireValueChanged() {
+    ValueListener[] ls = valueListeners;
+    for (int i = 0; i < ls.length; i++)
+      ls[i].valueChanged(this, value, adjusting);
+    if (getActionEventTarget() != null)
+      gui.fireActionEvent(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, getActionCommand() + "##valueChanged"));
+    else gui.actionEvent = null;  // nobody is listening, so the event is not created
+  }
+
+  protected void flushCoalescedEvents() {
+    boolean dragging = (gui.componentMouseClicked == this);
+    if (valueChangePending || (adjusting && !dragging)) {  // send latest value, or tell the handler that the drag has ended
+      valueChangePending = false;
+      adjusting = dragging;
+      fireValueChanged();
     }
+    if (dragging) gui.coalesce(this);  // check again in the next frame to notice the end of the drag
   }
 
   public void draw(PGraphics g) {
     super.draw(g);
-    g.pushStyle();
-    g.noFill();
-    g.stroke(getForeground());
-    g.strokeWeight((gui.componentMouseClicked == this) ? 1 : .25f);
+    TRenderState rs = gui.renderState(g);
+    float strokeWeight = g.strokeWeight;  // caller's stroke weight (restored below)
+    rs.noFill();
+    rs.stroke(getForeground());
+    rs.strokeWeight((gui.componentMouseClicked == this) ? 1 : .25f);
     float width = bounds.width - padding.left - padding.right - knobSize;
     float y = bounds.y + padding.top + (bounds.height - padding.top - padding.bottom)/2;
     g.line(bounds.x + padding.left + knobSize/2, y,
            bounds.x + padding.left + (bounds.width - padding.left - padding.right) - knobSize/2f, y);
-    g.popStyle();
-    g.noStroke();
-    g.fill(getForeground());
+    rs.strokeWeight(strokeWeight);
+    rs.noStroke();
+    rs.fill(getForeground());
     float r = (gui.componentMouseClicked == this) ? knobSize : .7f*knobSize;
     float knobOffset = (value - min)*width/(max - min);
     g.ellipse(bounds.x + padding.left + knobSize/2f + knobOffset, y, r, r);
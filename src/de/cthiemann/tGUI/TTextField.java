@@ -20,6 +20,7 @@
 
 package de.cthiemann.tGUI;
 import processing.core.PApplet;
+import processing.core.PFont;
 import processing.core.PGraphics;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
@@ -45,15 +46,14 @@ public class TTextField extends TComponent implements ClipboardOwner {
 
   public TTextField(TransparentGUI gui) { this(gui, null); }
   public TTextField(TransparentGUI gui, String cmd) {
-    super(gui); clickable = true;
-    gui.registerForKeyEvents(this);
+    super(gui); clickable = true;  // typing reaches us as focus owner, the hot key through addNotify
     setActionCommand(cmd);
   }
 
-  public void setText(String s) { text = s; caretPos = s.length(); }
+  public void setText(String s) { text = s; caretPos = s.length(); repaint(); }
   public String getText() { return text; }
 
-  public void setEmptyText(String s) { strEmpty = s; }
+  public void setEmptyText(String s) { strEmpty = s; repaint(); }
   public String getEmptyText() { return strEmpty; }
 
   public String getSelectedText() { return text.substring(PApplet.min(selectPos, caretPos), PApplet.max(selectPos, caretPos)); }
@@ -72,18 +72,20 @@ public class TTextField extends TComponent implements ClipboardOwner {
   //public void setAlignment(int align) { this.align = align; }  // FIXME: draw() only handles ALIGN_LEFT correctly at the moment
 
   public TComponent.Dimension getMinimumSize() {
-    gui.app.g.textFont(getFont());
-    return new TComponent.Dimension(200, gui.app.g.textAscent() + 1.5f*gui.app.g.textDescent());
+    return new TComponent.Dimension(200, gui.textMetrics.ascent(getFont()) + 1.5f*gui.textMetrics.descent(getFont()));
   }
 
   public void setHotKey(int c) { setHotKey(c, 0); }
   public void setHotKey(int c, int mods) {
-    gui.unregisterFromKeyEvents(this);
+    if (attached && (hotKeyCode > 0)) gui.unregisterHotKey(this, hotKeyCode, hotKeyMods);
     hotKeyCode = c;
     hotKeyMods = mods;
-    if (c > 0) gui.registerForKeyEvents(this);
+    if (attached && (hotKeyCode > 0)) gui.registerHotKey(this, hotKeyCode, hotKeyMods);
   }
 
+  public void addNotify() { super.addNotify(); if (hotKeyCode > 0) gui.registerHotKey(this, hotKeyCode, hotKeyMods); }
+  public void removeNotify() { if (hotKeyCode > 0) gui.unregisterHotKey(this, hotKeyCode, hotKeyMods); super.removeNotify(); }
+
   public void handleKeyEvent(KeyEvent e) {
     super.handleKeyEvent(e);
     if (e.isConsumed()) return;
@@ -95,6 +97,7 @@ public class TTextField extends TComponent implements ClipboardOwner {
       } else
         return;  // don't process events not handled here if we don't have keyboard focus
     }
+    repaint();  // text, caret or selection might change
     if (e.getID() == KeyEvent.KEY_PRESSED) {
       switch (e.getKeyCode()) {
         case KeyEvent.VK_LEFT:
@@ -204,45 +207,56 @@ public class TTextField extends TComponent implements ClipboardOwner {
       img = gui.app.createGraphics(PApplet.ceil(bounds.width)+1, PApplet.ceil(bounds.height)+1, PApplet.JAVA2D);
     img.beginDraw();
     img.smooth();
-    img.textFont(getFont());
+    PFont fn = getFont();
+    TTextMetrics tm = gui.textMetrics;
+    img.textFont(fn);
     img.textAlign(align, g.BASELINE);
     img.background(0, 0);
     //
     float x = padding.left;
-    float dxCaret = img.textWidth(text.substring(0, caretPos));
-    float dxSelect = (selectPos == -1) ? Float.NaN : img.textWidth(text.substring(0, selectPos));
-    float y = bounds.height - padding.bottom - g.textDescent();
+    float dxCaret = tm.width(fn, text.substring(0, caretPos));  // measure the actual substrings, so that the caret is placed exactly
+    float dxSelect = (selectPos == -1) ? Float.NaN : tm.width(fn, text.substring(0, selectPos));
+    float y = bounds.height - padding.bottom - tm.descent(fn);
     float w = bounds.width - padding.left - padding.right;
-    float h = g.textAscent() + g.textDescent();
+    float h = tm.height(fn);
     if (bounds.height - padding.top - padding.bottom > h)
       y -= (bounds.height - padding.top - padding.bottom - h)/2;
     //
     if (targetScrollOffset + dxCaret < 0) targetScrollOffset -= targetScrollOffset + dxCaret;
     if (targetScrollOffset + dxCaret > w) targetScrollOffset -= targetScrollOffset + dxCaret - w;
-    targetScrollOffset = PApplet.max(targetScrollOffset, w - img.textWidth(text));
+    targetScrollOffset = PApplet.max(targetScrollOffset, w - tm.width(fn, text));
     targetScrollOffset = PApplet.min(targetScrollOffset, 0);
     scrollOffset += 10*(targetScrollOffset - scrollOffset)*PApplet.min(gui.dt, 1/10.f);
+    if (PApplet.abs(targetScrollOffset - scrollOffset) < .1f) scrollOffset = targetScrollOffset;
     //
     img.pushMatrix(); img.translate(scrollOffset, 0);
     if (isFocusOwner() && (selectPos != -1)) {
       img.rectMode(g.CORNERS); img.noStroke(); img.fill(200, 0, 0, 127);
-      img.rect(x + dxSelect, y - img.textAscent(), x + dxCaret, y + img.textDescent());
+      img.rect(x + dxSelect, y - tm.ascent(fn), x + dxCaret, y + tm.descent(fn));
     }
     img.noStroke();
     boolean showEmptyText = (text.length() == 0) && !isFocusOwner();
     img.fill(getForeground(), showEmptyText ? 127 : 255);
     img.text(showEmptyText ? strEmpty : text, x, y);
     caretPeriod = PApplet.min(3f, caretPeriod + 0.05f*PApplet.min(gui.dt, 1/3.f));
-    if (isFocusOwner()) {  // draw caret
+    if (isFocusOwner() && gui.isIdleMode()) {  // plain blinking, so the sketch can sleep between the toggles
+      int period = 1200, phase = gui.app.millis() % period;  // (caretPeriod relaxes with gui.dt, which stops while sleeping)
+      caretAlpha = (phase < period/2) ? 1 : 0;
+      repaintAt(gui.app.millis() + ((phase < period/2) ? period/2 : period) - phase);
+    } else if (isFocusOwner()) {
       caretAlpha += caretPhase*PApplet.min(gui.dt, 1/3.f)/(caretPeriod/(caretPhase > 0 ? 3f : 1.5f));
       if (caretAlpha > 1) { caretAlpha = 1; caretPhase = -1; }
       else if (caretAlpha < 0) { caretAlpha = 0; caretPhase = +1; }
+    }
+    if (isFocusOwner()) {  // draw caret
       img.stroke(getForeground(), 255*caretAlpha); img.noFill();
-      img.line(x + dxCaret, y - img.textAscent(), x + dxCaret, y + img.textDescent());
+      img.line(x + dxCaret, y - tm.ascent(fn), x + dxCaret, y + tm.descent(fn));
     }
     img.popMatrix();
     img.endDraw();
     //
     g.image(img, bounds.x, bounds.y);
+    if ((isFocusOwner() && !gui.isIdleMode()) || (scrollOffset != targetScrollOffset))
+      repaint();  // caret is fading or text is scrolling
   }
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Christian Thiemann <christian@spato.net>
+ * Developed at Northwestern University <http://rocs.northwestern.edu>
+ *
+ * This file is part of TransparentGUI, a GUI library for Processing.
+ *
+ * TransparentGUI is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TransparentGUI is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TransparentGUI.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.cthiemann.tGUI;
+import processing.core.PFont;
+import processing.core.PGraphics;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Caches text measurements per font: ascent, descent and leading, a glyph advance table, and the
+ * widths of recently measured strings.  All measurements are done with the sketch's graphics object
+ * (the same one components used before), whose text font is restored afterwards. */
+public class TTextMetrics {
+  public static final int MAX_STRINGS = 1024;  // number of string widths remembered per font
+
+  protected TransparentGUI gui;
+  protected IdentityHashMap<PFont, FontMetrics> fonts = new IdentityHashMap<PFont, FontMetrics>();
+  protected FontMetrics last = null;  // most recently used font (components tend to measure with the same font repeatedly)
+
+  protected static class FontMetrics {
+    PFont font;
+    float size, ascent, descent, leading;
+    float[][] advances = new float[256][];  // glyph advances, allocated in pages of 256 characters
+    LinkedHashMap<String, Float> widths = new LinkedHashMap<String, Float>(64, .75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) { return size() > MAX_STRINGS; } };
+    FontMetrics(PFont font) { this.font = font; }
+  }
+
+  public TTextMetrics(TransparentGUI gui) { this.gui = gui; }
+
+  public synchronized void clear() { fonts.clear(); last = null; }
+
+  protected FontMetrics get(PFont font) {
+    if ((last != null) && (last.font == font)) return last;
+    last = fonts.get(font);
+    if (last == null) {
+      fonts.put(font, last = new FontMetrics(font));
+      PGraphics g = begin(font);
+      last.size = g.textSize;
+      last.ascent = g.textAscent();
+      last.descent = g.textDescent();
+      last.leading = g.textLeading;
+      end(g);
+    }
+    return last;
+  }
+
+  // the graphics object's font is switched only while measuring
+  private PFont prevFont = null;
+  private float prevSize = 0;
+  protected PGraphics begin(PFont font) {
+    PGraphics g = gui.app.g;
+    prevFont = g.textFont; prevSize = g.textSize;
+    g.textFont(font);
+    return g;
+  }
+  protected void end(PGraphics g) {
+    if ((prevFont != null) && ((g.textFont != prevFont) || (g.textSize != prevSize)))
+      g.textFont(prevFont, prevSize);
+    prevFont = null;
+  }
+
+  public synchronized float size(PFont font) { return get(font).size; }
+  public synchronized float ascent(PFont font) { return get(font).ascent; }
+  public synchronized float descent(PFont font) { return get(font).descent; }
+  public synchronized float height(PFont font) { FontMetrics fm = get(font); return fm.ascent + fm.descent; }
+  public synchronized float leading(PFont font) { return get(font).leading; }
+
+  /** Returns the advance of a single glyph. */
+  public synchronized float width(PFont font, char c) {
+    FontMetrics fm = get(font);
+    float[] page = fm.advances[c >> 8];
+    if (page == null) {
+      page = fm.advances[c >> 8] = new float[256];
+      java.util.Arrays.fill(page, Float.NaN);
+    }
+    if (Float.isNaN(page[c & 255])) {
+      PGraphics g = begin(font);
+      page[c & 255] = g.textWidth(c);
+      end(g);
+    }
+    return page[c & 255];
+  }
+
+  /** Returns the width of the string (measured once, then remembered). */
+  public synchronized float width(PFont font, String str) {
+    FontMetrics fm = get(font);
+    Float w = fm.widths.get(str);
+    if (w == null) {
+      PGraphics g = begin(font);
+      fm.widths.put(str, w = g.textWidth(str));
+      end(g);
+    }
+    return w.floatValue();
+  }
+
+  /** Returns the width of str.substring(start, stop).  For proper substrings, this is the sum of the
+   * glyph advances, which ignores kerning and may differ slightly from the width of the text as drawn. */
+  public synchronized float width(PFont font, String str, int start, int stop) {
+    if ((start == 0) && (stop == str.length())) return width(font, str);
+    float w = 0;
+    for (int i = start; i < stop; i++)
+      w += width(font, str.charAt(i));
+    return w;
+  }
+}
@@ -20,7 +20,6 @@
 
 package de.cthiemann.tGUI;
 import processing.core.PGraphics;
-import java.awt.Color;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 
@@ -33,7 +32,7 @@ public class TToggleButton extends TButton {
   public TToggleButton(TransparentGUI gui, String s, TButtonGroup g) { super(gui, s); setButtonGroup(g); }
 
   public boolean isSelected() { return selected; }
-  public void setSelected(boolean b) { selected = b; }
+  public void setSelected(boolean b) { if (selected != b) { selected = b; repaint(); } }
 
   public TButtonGroup getButtonGroup() { return group; }
   public void setButtonGroup(TButtonGroup g) { group = g;
@@ -54,5 +53,5 @@ public class TToggleButton extends TButton {
     }
   }
 
-  public Color getForegroundColor() { return gui.style.getForegroundColor(this, selected); }  // FIXME
+  public int getForeground() { return gui.style.getForeground(this, selected); }  // FIXME
 }
\ No newline at end of file
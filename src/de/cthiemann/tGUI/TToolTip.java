@@ -40,6 +40,7 @@ public class TToolTip extends TWindow {
   protected float tfuse = 0;  // time since the mouse entered anchor component
   protected float t1 = Float.NaN;  // time (in seconds) until tooltip will be shown
   protected long tlast = -1;  // last time the tooltip was shown (Unix timestamp)
+  protected int lastUpdateFrame = -1;  // update() is called by the anchor's draw() and by TransparentGUI, but should only run once per frame
 
   public TToolTip(TComponent comp) { this(comp, new TBorderLayout()); }
   public TToolTip(TComponent comp, String str) { this(comp); setText(str); }
@@ -104,6 +105,7 @@ public class TToolTip extends TWindow {
              : (location == ABOVE) ? acl.y - bounds.height - margin.bottom  // attach above
              : (acl.y + acs.height/2 < gui.app.height/2) ? PApplet.min(acl.y, gui.app.height - bounds.height - margin.bottom)  // align top
              : PApplet.max(acl.y + acs.height - bounds.height - margin.top, 0) + margin.top;  // align bottom
+    geometryChanged();
     // layout components within the tooltip
     invalidateAll(); // force re-layouting the tooltip window
     super.validate();  // TWindow.validate() -> TContainer.doLayout()
@@ -111,7 +113,12 @@ public class TToolTip extends TWindow {
 
   private boolean show = false;
 
+  /** Returns true if the mouse is over the anchor component but the tooltip is not yet shown. */
+  public boolean isPending() { return (gui.componentAtMouse == comp) && !show; }
+
   public void update() {
+    if (lastUpdateFrame == gui.app.frameCount) return;
+    lastUpdateFrame = gui.app.frameCount;
     t1 = 0;//FIXME temp//if (Float.isNaN(t1)) t1 = gui.prefs.getFloat(getPrefID() + ".delay", 0);
     //if (tlast == -1) tlast = gui.prefs.getLong(getPrefID() + ".last", )  // FIXME
     //
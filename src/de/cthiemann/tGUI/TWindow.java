@@ -20,11 +20,21 @@
 
 package de.cthiemann.tGUI;
 import processing.core.PApplet;
+import processing.core.PGraphics;
 import java.awt.event.MouseEvent;
+import java.util.IdentityHashMap;
+import java.util.Vector;
 
 public class TWindow extends TContainer {
   protected boolean fragile = false;  // if this is true, the window will be removed from the rootContainer if a mouse click occured that did not hit this window
   protected boolean movable = false;
+  protected boolean layered = false;  // if true, the window is rasterized into an offscreen image which is re-used until something changes
+  protected PGraphics layer = null;
+  protected boolean layerValid = false;
+  protected TComponent[] focusOrder = new TComponent[0];  // focusable, showing and enabled descendants in traversal order (cached)
+  protected IdentityHashMap<TComponent,Integer> focusOrderIndex = new IdentityHashMap<TComponent,Integer>();
+  protected int focusOrderVersion = -1;  // value of gui.stateVersion when focusOrder was built
+  protected static final int LAYER_MARGIN = 2;  // extra space around the layer image for borders and anti-aliasing
 
   protected TWindow() { super(null); }  // this constructor is only for use by TransparentGUI
   public TWindow(TransparentGUI gui) { this(gui, new TBorderLayout()); }
@@ -40,12 +50,46 @@ public class TWindow extends TContainer {
   public boolean isFocused() { return gui.getFocusedWindow() == this; }
   public boolean isActive() { return gui.getActiveWindow() == this; }
 
+  /** Returns the component step positions after (or before, if step is negative) comp in this window's focus
+   * traversal order, wrapping around at the ends.  Returns null if comp is not part of the traversal order. */
+  TComponent getFocusTraversalNeighbor(TComponent comp, int step) {
+    if (focusOrderVersion != gui.stateVersion) {  // structure, visibility, enabled or focusable state has changed
+      Vector<TComponent> order = new Vector<TComponent>();
+      collectFocusOrder(this, order);
+      focusOrder = order.toArray(new TComponent[order.size()]);
+      focusOrderIndex.clear();
+      for (int i = 0; i < focusOrder.length; i++)
+        focusOrderIndex.put(focusOrder[i], Integer.valueOf(i));
+      focusOrderVersion = gui.stateVersion;
+    }
+    Integer index = focusOrderIndex.get(comp);
+    if (index == null) return null;
+    int n = focusOrder.length;
+    return focusOrder[(((index.intValue() + step) % n) + n) % n];
+  }
+  /** Adds comp and all its descendants that can take the focus to order (parents before their children, like
+   * TContainer.getFirstFocusableComponent). */
+  protected static void collectFocusOrder(TComponent comp, Vector<TComponent> order) {
+    if (comp.isShowing() && comp.isEnabled() && comp.isFocusable())
+      order.add(comp);
+    if (comp instanceof TContainer)
+      for (int i = 0; i < ((TContainer)comp).getComponentCount(); i++)
+        collectFocusOrder(((TContainer)comp).getComponent(i), order);
+  }
+
   public boolean isFragile() { return fragile; }
   public void setFragile(boolean b) { fragile = b; }
 
   public boolean isMovable() { return movable; }
   public void setMovable(boolean b) { movable = b; }
 
+  public boolean isLayered() { return layered; }
+  /** In layer mode, the window and all its children are drawn into an offscreen image, which is
+   * then drawn at the window's location.  The image is only re-rasterized if any component in
+   * this window calls repaint() (which happens on invalidate() and all visual state changes). */
+  public void setLayered(boolean b) { layered = b; layer = null; layerValid = false; gui.invalidateDisplayLists(this); }
+  protected boolean isSegmented() { return !layered && super.isSegmented(); }
+
   protected float pmouseX, pmouseY;
   protected Rectangle pbounds;
   public void handleMouseEvent(MouseEvent e) {
@@ -58,11 +102,47 @@ public class TWindow extends TContainer {
         break;
       case MouseEvent.MOUSE_DRAGGED:
         if (!movable) break;
-        bounds.x = pbounds.x + gui.app.mouseX - pmouseX;
-        bounds.y = pbounds.y + gui.app.mouseY - pmouseY;
-        bounds.x = PApplet.max(0, PApplet.min(gui.app.width - bounds.width, bounds.x));
-        bounds.y = PApplet.max(0, PApplet.min(gui.app.height - bounds.height, bounds.y));
-        invalidate(); break;
+        if (gui.isEventCoalescing()) { dragPending = true; gui.coalesce(this); }  // move once at the beginning of the next frame
+        else moveWithMouse();
+        break;
+    }
+  }
+
+  protected boolean dragPending = false;
+  protected void flushCoalescedEvents() { if (dragPending) { dragPending = false; moveWithMouse(); } }
+
+  protected void moveWithMouse() {
+    gui.repaint(this);  // moving the window does not require re-rasterizing the layer
+    bounds.x = pbounds.x + gui.app.mouseX - pmouseX;
+    bounds.y = pbounds.y + gui.app.mouseY - pmouseY;
+    bounds.x = PApplet.max(0, PApplet.min(gui.app.width - bounds.width, bounds.x));
+    bounds.y = PApplet.max(0, PApplet.min(gui.app.height - bounds.height, bounds.y));
+    geometryChanged();
+    invalidate();
+  }
+
+  public void draw(PGraphics g) {
+    if (!layered) { super.draw(g); return; }
+    if (!valid) validate();
+    int w = PApplet.ceil(bounds.width) + 2*LAYER_MARGIN, h = PApplet.ceil(bounds.height) + 2*LAYER_MARGIN;
+    if ((layer == null) || (layer.width != w) || (layer.height != h)) {
+      layer = gui.app.createGraphics(w, h, PApplet.JAVA2D);
+      layerValid = false;
+    }
+    if (!layerValid) {
+      layerValid = true;  // set this first so that children which keep animating can invalidate it while being drawn
+      layer.beginDraw();
+      layer.smooth();
+      layer.background(0, 0);
+      layer.translate(LAYER_MARGIN - bounds.x, LAYER_MARGIN - bounds.y);
+      TComponent.Rectangle clip = gui.drawClip;
+      float cx = clip.x, cy = clip.y, cw = clip.width, ch = clip.height;
+      gui.resetDrawClip();  // the layer holds the whole window, even if parts of it are currently offscreen
+      super.draw(layer);
+      clip.set(cx, cy, cw, ch);
+      layer.endDraw();
     }
+    g.imageMode(PApplet.CORNER);
+    g.image(layer, bounds.x - LAYER_MARGIN, bounds.y - LAYER_MARGIN);
   }
 }
\ No newline at end of file
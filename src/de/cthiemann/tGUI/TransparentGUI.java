@@ -19,14 +19,35 @@
  */
 
 package de.cthiemann.tGUI;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import processing.core.PApplet;
 import processing.core.PFont;
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.prefs.Preferences;
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.Graphics2D;
 import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 
@@ -38,35 +59,89 @@ public class TransparentGUI extends TWindow {
   protected boolean componentAtMouseValid = false;
   public TComponent componentMouseClicked = null;  // between MOUSE_PRESSED and MOUSE_RELEASED, this is the component which was under the mouse cursor at MOUSE_PRESSED
   protected TComponent componentKeyFocus = null;  // the component which currently has keyboard focus
-  protected Vector<TComponent> keyEventComponents = new Vector<TComponent>();
-  public ActionEvent actionEvent = null;  // the current action event when any component calls its action event (simplified) listeners
+  protected Vector<WeakReference<TComponent>> keyEventComponents = new Vector<WeakReference<TComponent>>();  // components that want to see every key event (weak, so forgotten registrations don't leak)
+  protected HashMap<Integer,Vector<TComponent>> hotKeyComponents = new HashMap<Integer,Vector<TComponent>>();  // (key code, modifiers) -> components
+  protected HashMap<Character,Vector<TComponent>> hotKeyCharComponents = new HashMap<Character,Vector<TComponent>>();  // key char -> components
+  public ActionEvent actionEvent = null;  // the current action event when any component calls its action event (simplified) listeners (null after a slider or choice change nobody handled; only valid on the animation thread, see getActionEvent)
+  protected ThreadLocal<ActionEvent> asyncActionEvent = new ThreadLocal<ActionEvent>();  // event being handled by the current worker thread
   public TToolTip visibleToolTip = null;  // currently visible tooltip, if any (null otherwise)
 
   public float t = -1, tt = -1, dt = -1;  // for animation purposes
 
+  protected boolean retained = false;  // if true, the GUI is cached in an offscreen buffer and only changed regions are redrawn
+  protected PGraphics canvas = null;  // offscreen buffer for retained mode
+  protected Vector<TComponent> dirtyComponents = new Vector<TComponent>();  // components that called repaint() since the last frame
+  protected Vector<TComponent.Rectangle> dirtyRegions = new Vector<TComponent.Rectangle>();  // screen areas that need to be redrawn
+  protected static final int MAX_DIRTY_CLUSTERS = 8;  // more disjoint dirty areas are redrawn as their bounding box
+
+  protected int treeVersion = 0;  // incremented whenever components are added or removed (or action handlers change)
+  protected int geometryVersion = 0;  // incremented whenever components are added, removed, moved, resized, shown, or hidden
+  protected int stateVersion = 0;  // incremented whenever components are added, removed, shown, hidden, enabled, or disabled
+  protected TComponent[] hitPath = new TComponent[16];  // path from rootContainer to the component found by the last hit test
+  protected int[] hitPathIndex = new int[16];  // index of hitPath[k] in hitPath[k-1]
+  protected int hitPathLength = 0;
+  protected int hitPathVersion = -1;  // geometryVersion at the time of the last hit test
+
+  protected boolean eventCoalescing = false;  // if true, drag-driven changes are delivered at most once per frame
+  protected Vector<TComponent> coalesced = new Vector<TComponent>();  // components with pending coalesced changes
+  protected Vector<TComponent> coalescedFlushing = new Vector<TComponent>();
+  protected final Object coalescedLock = new Object();  // guards coalesced (the two lists are swapped, so they can't be locked themselves)
+
+  protected int batchDepth = 0;  // > 0 while inside beginBatch()/endBatch()
+  protected LinkedHashSet<TComponent> batchInvalidated = new LinkedHashSet<TComponent>();  // invalidations deferred until endBatch()
+
+  protected boolean idleMode = false;  // if true, the sketch is stopped with noLoop() while the GUI is idle
+  protected boolean busy = true;  // true if any component called repaint() since the current frame started
+  protected volatile boolean sleeping = false;  // true if we called noLoop()
+  protected ConcurrentLinkedQueue<InputEvent> deferredEvents = new ConcurrentLinkedQueue<InputEvent>();  // input that arrived on the AWT thread while sleeping, handled in pre()
+  protected HashMap<TComponent,Integer> scheduledRepaints = new HashMap<TComponent,Integer>();  // component -> app.millis() at which it wants to be repainted
+  protected Timer wakeUpTimer = null;  // wakes the sketch up for scheduled repaints while sleeping (created on demand)
+  protected TimerTask wakeUpTask = null;
+  protected ConcurrentLinkedQueue<Runnable> invokeLaterQueue = new ConcurrentLinkedQueue<Runnable>();  // posted by any thread, run in pre()
+  protected float invokeLaterBudget = 5;  // milliseconds per frame spent running queued runnables
+  protected volatile Thread frameThread = null;  // the thread calling pre() and draw() (until the first frame: the thread that created the GUI)
+  protected Executor defaultExecutor = null;  // used for asynchronous action events (created on demand)
+  protected ExecutorService ownExecutor = null;  // defaultExecutor, if we created it (and have to shut it down)
+
+  /** Clip rectangle in the coordinate system of the component currently being drawn; containers skip
+   * children that lie completely outside of it. */
+  protected TComponent.Rectangle drawClip = new TComponent.Rectangle();
+  protected void resetDrawClip() { drawClip.set(-Float.MAX_VALUE/4, -Float.MAX_VALUE/4, Float.MAX_VALUE/2, Float.MAX_VALUE/2); }
+  public TComponent.Rectangle getDrawClip() { return drawClip; }
+
+  protected boolean displayListMode = false;  // if true, each window's draw operations are recorded and replayed until the window changes
+  protected boolean displayListReordering = false;  // if true, text operations are grouped by font and fill color
+
+  protected TRenderState renderState = new TRenderState();  // filters redundant render state changes
+  protected TTextMetrics textMetrics = new TTextMetrics(this);  // shared text measurement cache
+
   public TContainer rootContainer;
   public Style style;
 
+  /** Default fonts and colors of all components.  Components are drawn with the packed ARGB int getters;
+   * the java.awt.Color getters are only kept for code that reads colors.  Note that this is a change for
+   * subclasses: themes have to override the int getters, overriding the Color getters has no effect. */
   public class Style {
     TransparentGUI gui;
     PFont fnNorm, fnBold;
-    Color cFgDefault, cBgDefault, cBdDefault;  // default colors for all components
-    Color cFgToggleOff;  // color for deselected toggle buttons
-    Color cBgWindow, cBgCompactGroup;  // colors for top level containers and compact groups
-    Color cBgMainWinComponent, cBdMainWinComponent;  // colors for components that are direct children of TransparentGUI
+    // all colors are packed ARGB ints (as used by Processing) to avoid allocating Color objects while drawing
+    int cFgDefault, cBgDefault, cBdDefault;  // default colors for all components
+    int cFgToggleOff;  // color for deselected toggle buttons
+    int cBgWindow, cBgCompactGroup;  // colors for top level containers and compact groups
+    int cBgMainWinComponent, cBdMainWinComponent;  // colors for components that are direct children of TransparentGUI
 
     public Style(TransparentGUI gui) {
       this.gui = gui;
       fnNorm = createFont("GillSans", 12);
       fnBold = createFont("GillSans-Bold", 12);
-      cFgDefault = new Color(0);
-      cFgToggleOff = new Color(127, 127, 127);
-      cBgDefault = new Color(127, 127, 127, 225);
-      cBdDefault = new Color(0, 0, 0, 225);
-      cBgMainWinComponent = new Color(255, 255, 255, 225);
-      cBdMainWinComponent = new Color(127, 127, 127, 225);
-      cBgWindow = new Color(200, 200, 200, 225);
-      cBgCompactGroup = new Color(225, 225, 225, 225);
+      cFgDefault = new Color(0).getRGB();
+      cFgToggleOff = new Color(127, 127, 127).getRGB();
+      cBgDefault = new Color(127, 127, 127, 225).getRGB();
+      cBdDefault = new Color(0, 0, 0, 225).getRGB();
+      cBgMainWinComponent = new Color(255, 255, 255, 225).getRGB();
+      cBdMainWinComponent = new Color(127, 127, 127, 225).getRGB();
+      cBgWindow = new Color(200, 200, 200, 225).getRGB();
+      cBgCompactGroup = new Color(225, 225, 225, 225).getRGB();
     }
 
     public PFont getFont() { return fnNorm; }
@@ -74,26 +149,35 @@ public class TransparentGUI extends TWindow {
     public PFont getFont(TComponent comp) { return fnNorm; }
     public PFont getFont(TComponent comp, boolean bold) { return bold ? fnBold : fnNorm; }
 
-    public Color getForegroundColor(TComponent comp) { return cFgDefault; }
-    public Color getForegroundColor(TToggleButton comp, boolean selected) { return selected ? cFgDefault : cFgToggleOff; }
-    public Color getBackgroundColor(TComponent comp) {
+    public int getForeground(TComponent comp) { return cFgDefault; }
+    public int getForeground(TToggleButton comp, boolean selected) { return selected ? cFgDefault : cFgToggleOff; }
+    public int getBackground(TComponent comp) {
       if (comp instanceof TWindow) return cBgWindow;
-      if (comp instanceof TConsole || (comp instanceof TLabel && !(comp instanceof TButton))) return new Color(0, 0, 0, 0);
+      if (comp instanceof TConsole || (comp instanceof TLabel && !(comp instanceof TButton))) return 0;  // transparent
       //if (comp.parent == gui) return cBgMainWinComponent;
       return cBgDefault;
     }
-    public Color getBackgroundColorForCompactGroups() { return cBgCompactGroup; }
-    public Color getBorderColor(TComponent comp) {
+    public int getBackgroundForCompactGroups() { return cBgCompactGroup; }
+    public int getBorder(TComponent comp) {  // border color
       if (comp.parent == gui) return cBdMainWinComponent;
       return cBdDefault;
     }
+
+    // java.awt.Color versions of the above (these allocate a new Color object on each call and are not used for drawing)
+    public Color getForegroundColor(TComponent comp) { return new Color(getForeground(comp), true); }
+    public Color getForegroundColor(TToggleButton comp, boolean selected) { return new Color(getForeground(comp, selected), true); }
+    public Color getBackgroundColor(TComponent comp) { return new Color(getBackground(comp), true); }
+    public Color getBackgroundColorForCompactGroups() { return new Color(getBackgroundForCompactGroups(), true); }
+    public Color getBorderColor(TComponent comp) { return new Color(getBorder(comp), true); }
   }
 
   public TransparentGUI(PApplet app) {
     this.gui = this;
     this.app = app;
+    this.frameThread = Thread.currentThread();  // the GUI is normally created in setup(), which runs on the animation thread
     this.prefs = Preferences.userRoot().node("/net/spato/de/cthiemann/tGUI/" + app.getClass().getName().replaceAll(".", "__"));
     this.style = new Style(this);
+    resetDrawClip();
     this.capturesMouse = false;
     app.mouseX = app.mouseY = -1;  // mouseX/mouseY are 0 at the beginning, which is unfortunate
     app.registerPre(this);
@@ -110,6 +194,7 @@ public class TransparentGUI extends TWindow {
       public boolean isShowing() { return true; }
       public Point getLocationOnScreen() { return new TComponent.Point(0, 0); }
     };
+    rootContainer.addNotify();  // the root container is always part of the GUI
     rootContainer.add(this);
     rootContainer.setBackground(0);
     rootContainer.setActionEventHandler(app);  // set applet as fallback action event handler (if method is implemented there)
@@ -204,10 +289,74 @@ public class TransparentGUI extends TWindow {
     actionEvent = event;
     // call first event handler we encounter while traversing up the component hierarchy
     // (as a fallback, the rootContainer has actionPerformed in the applet registered as an event handler)
-    for (TComponent comp = (TComponent)event.getSource(); comp != null; comp = comp.getParent())
-      if ((comp.actionEventHandler != null) && (comp.actionEventMethod != null))
-        try { comp.actionEventMethod.invoke(comp.actionEventHandler, new Object[] { event.getActionCommand() }); return; }
-        catch (Exception e) { e.printStackTrace(); }
+    // (the handling component is cached; if its handler fails, the next one up the hierarchy is tried)
+    TComponent source = (TComponent)event.getSource();
+    TComponent comp = source.getActionEventTarget();
+    if (comp == null) return;
+    Executor executor = (source.actionEventExecutor != null) ? source.actionEventExecutor : comp.actionEventExecutor;
+    if (executor != null) { fireActionEventAsync(event, source, comp, executor); return; }
+    while ((comp != null) && !comp.dispatchActionEvent(event))
+      comp = (comp.parent != null) ? comp.parent.getActionEventTarget() : null;
+  }
+
+  /** Returns the action event being handled.  Unlike the actionEvent field, which the animation thread
+   * overwrites with the next event, this also works in handlers running on an executor (see
+   * TComponent.setActionEventExecutor). */
+  public ActionEvent getActionEvent() {
+    ActionEvent event = asyncActionEvent.get();
+    return (event != null) ? event : actionEvent;
+  }
+
+  /** Dispatches event to target (and, if its handler fails, further up the hierarchy) on the given executor.
+   * The source component is notified on the animation thread when handling has finished. */
+  protected void fireActionEventAsync(final ActionEvent event, final TComponent source, TComponent target, Executor executor) {
+    // resolve the fallback chain here, so the worker doesn't walk the component tree while it may change
+    int n = 0;
+    for (TComponent comp = target; comp != null; comp = (comp.parent != null) ? comp.parent.getActionEventTarget() : null) n++;
+    final TComponent[] targets = new TComponent[n];
+    n = 0;
+    for (TComponent comp = target; comp != null; comp = (comp.parent != null) ? comp.parent.getActionEventTarget() : null) targets[n++] = comp;
+    source.handleActionStarted(event);
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          Throwable error = null;
+          try {
+            asyncActionEvent.set(event);
+            Object[] args = new Object[1];
+            for (int i = 0; i < targets.length; i++)
+              if ((error = targets[i].dispatchActionEvent(event, args)) == null) break;
+          } catch (Throwable t) { t.printStackTrace(); error = t; }
+          finally { asyncActionEvent.remove(); }
+          final Throwable result = error;
+          invokeLater(new Runnable() { public void run() { source.handleActionCompleted(event, result); } });
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      source.handleActionCompleted(event, e);
+    }
+  }
+
+  /** Returns the executor used by TComponent.setAsyncActionEvents.  Unless one was set with setDefaultExecutor,
+   * an executor using virtual threads (if the Java runtime has them) or a pool of daemon threads is created. */
+  public synchronized Executor getDefaultExecutor() {
+    if (defaultExecutor == null) defaultExecutor = ownExecutor = createDefaultExecutor();
+    return defaultExecutor;
+  }
+  public synchronized void setDefaultExecutor(Executor executor) {
+    if (ownExecutor != null) { ownExecutor.shutdown(); ownExecutor = null; }
+    defaultExecutor = executor;
+  }
+  protected ExecutorService createDefaultExecutor() {
+    try { return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null); }
+    catch (Exception e) { /* no virtual threads in this runtime */ }
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "TransparentGUI action handler");
+        t.setDaemon(true);  // don't keep the sketch alive
+        return t;
+      }
+    });
   }
 
   public void add(TWindow win) { add(win, -1); }
@@ -217,9 +366,9 @@ public class TransparentGUI extends TWindow {
   protected void checkComponentAtMouse() {
     if (componentAtMouseValid) return;
     rootContainer.validate();  // ensure that root container is correctly layed out
-    TComponent newComponentAtMouse = rootContainer.getComponentAt(app.mouseX, app.mouseY);
-    while ((newComponentAtMouse != null) && !newComponentAtMouse.capturesMouse)
-      newComponentAtMouse = newComponentAtMouse.getParent();  // if this component doesn't handle mouse events, try parent
+    TComponent newComponentAtMouse = getComponentAtMouse(app.mouseX, app.mouseY);
+    if (newComponentAtMouse != null)
+      newComponentAtMouse = newComponentAtMouse.getMouseCapturer();  // if this component doesn't handle mouse events, try parent
     if (newComponentAtMouse != componentAtMouse) {
       if (componentAtMouse != null) componentAtMouse.handleMouseExited();
       componentAtMouse = newComponentAtMouse;
@@ -228,30 +377,384 @@ public class TransparentGUI extends TWindow {
     componentAtMouseValid = true;
   }
 
+  /** Hit test for the mouse position.  As consecutive mouse positions are usually close to each
+   * other, the path to the previous result is checked first: if the GUI did not change and the point
+   * is still within each component on that path and not covered by anything in front of it, the
+   * search continues below the end of that path. */
+  protected TComponent getComponentAtMouse(float x, float y) {
+    if ((hitPathVersion == geometryVersion) && (hitPathLength > 1)) {
+      float px = x, py = y;  // point in the coordinate system of hitPath[k]'s parent
+      int k = 1;
+      for (; k < hitPathLength; k++) {
+        TContainer c = (TContainer)hitPath[k-1];
+        px -= c.bounds.x; py -= c.bounds.y;
+        TComponent child = hitPath[k];
+        if (!child.isVisible() || !child.bounds.contains(px, py) || c.isCoveredAt(hitPathIndex[k], px, py)) break;
+      }
+      if (k == hitPathLength) {
+        TComponent result = hitPath[k-1].getComponentAt(px, py);
+        if (result != hitPath[k-1]) updateHitPath(result);
+        return result;
+      }
+    }
+    TComponent result = rootContainer.getComponentAt(x, y);
+    updateHitPath(result);
+    return result;
+  }
+
+  protected void updateHitPath(TComponent comp) {
+    hitPathVersion = geometryVersion;
+    hitPathLength = 0;
+    int depth = 0;
+    for (TComponent c = comp; c != null; c = c.parent) depth++;
+    if ((comp == null) || (depth > hitPath.length)) return;
+    hitPathLength = depth;
+    for (TComponent c = comp; c != null; c = c.parent) {
+      hitPath[--depth] = c;
+      hitPathIndex[depth] = (c.parent != null) ? c.parent.components.indexOf(c) : -1;
+    }
+    if (hitPath[0] != rootContainer) hitPathLength = 0;  // not part of the GUI (should not happen)
+  }
+
+  public boolean isEventCoalescing() { return eventCoalescing; }
+  /** If enabled, value changes of dragged sliders and the movement of dragged windows are applied
+   * at most once per frame (at the beginning of the frame, using the latest mouse position), no
+   * matter how many mouse events arrived in between.  Sliders report whether the drag is still in
+   * progress via TSlider.isValueAdjusting(); a final event is sent when the drag ends. */
+  public void setEventCoalescing(boolean b) { eventCoalescing = b; }
+  /** Schedules comp.flushCoalescedEvents() to be called at the beginning of the next frame. */
+  public void coalesce(TComponent comp) {
+    synchronized (coalescedLock) { if (!coalesced.contains(comp)) coalesced.add(comp); }
+    wakeUp();
+  }
+  protected void runCoalescedEvents() {
+    synchronized (coalescedLock) {
+      Vector<TComponent> tmp = coalescedFlushing; coalescedFlushing = coalesced; coalesced = tmp; }
+    // components may re-schedule themselves while being flushed, which goes into the other list
+    for (int i = 0; i < coalescedFlushing.size(); i++)
+      coalescedFlushing.get(i).flushCoalescedEvents();
+    coalescedFlushing.clear();
+  }
+
+  /** Schedules r to be run on the animation thread at the beginning of the next frame.  This can be
+   * called from any thread and never blocks; it is the preferred way for worker threads to update
+   * the GUI.  Runnables are executed in the order they were posted. */
+  public void invokeLater(Runnable r) {
+    invokeLaterQueue.offer(r);
+    wakeUp();
+  }
+  /** Like invokeLater, but waits until r has been run.  Exceptions thrown by r are wrapped in an
+   * InvocationTargetException.  If called on the animation thread, r is run immediately. */
+  public void invokeAndWait(Runnable r) throws InterruptedException, InvocationTargetException {
+    if (isFrameThread()) { r.run(); return; }
+    FutureTask<Object> task = new FutureTask<Object>(r, null);
+    invokeLater(task);
+    try { task.get(); }
+    catch (ExecutionException e) { throw new InvocationTargetException(e.getCause()); }
+  }
+  /** Returns true if called on the animation thread.  Before the first frame, the thread that created
+   * the GUI (usually the one running setup()) counts as the animation thread. */
+  public boolean isFrameThread() { Thread t = frameThread; return (t == null) || (t == Thread.currentThread()); }
+  public float getInvokeLaterBudget() { return invokeLaterBudget; }
+  /** Sets the time (in milliseconds) per frame after which no further queued runnables are started
+   * (the remaining ones are run in the next frame). */
+  public void setInvokeLaterBudget(float ms) { invokeLaterBudget = ms; }
+  protected void runInvokeLaterQueue() {
+    if (invokeLaterQueue.isEmpty()) return;
+    long deadline = System.nanoTime() + (long)(invokeLaterBudget*1e6f);
+    synchronized (this) {  // keep out code that synchronizes on the GUI the old way (see draw())
+      Runnable r;
+      while ((r = invokeLaterQueue.poll()) != null) {
+        try { r.run(); } catch (Exception e) { e.printStackTrace(); }
+        if (System.nanoTime() > deadline) break;
+      }
+    }
+  }
+
   public void pre() {
+    frameThread = Thread.currentThread();
+    if (wakeUpTask != null) { wakeUpTask.cancel(); wakeUpTask = null; }
+    runInvokeLaterQueue();
+    runCoalescedEvents();
+    runScheduledRepaints();
     checkComponentAtMouse();
-    if (tt == -1) t = app.millis()/1000.f;  // set for the first time
+    runDeferredEvents();
+    if (tt == -1) t = app.millis()/1000.f;  // set for the first time (or after sleeping in idle mode)
     tt = t;  // save last frame's time
     t = app.millis()/1000.f;  // get this frame's time
     dt = t - tt;  // set delta
   }
 
+  public boolean isRetainedMode() { return retained; }
+  /** In retained mode, the GUI is rendered into an offscreen buffer which is drawn onto the sketch
+   * in every frame.  Only screen regions covered by components which called repaint() are redrawn
+   * into the buffer, so a frame where nothing changed in the GUI costs a single image() call. */
+  public void setRetainedMode(boolean b) {
+    if (retained == b) return;
+    retained = b;
+    canvas = null;  // force full repaint when (re-)entering retained mode
+    for (int i = 0; i < dirtyComponents.size(); i++)
+      dirtyComponents.get(i).dirty = false;
+    dirtyComponents.clear();
+    dirtyRegions.clear();
+  }
+
+  protected void repaint(TComponent comp) {
+    wakeUp();
+    if (!retained || comp.dirty) return;
+    addDirtyRegion(comp);  // area currently covered by the component (might change during the next layout pass)
+    comp.dirty = true;
+    dirtyComponents.add(comp);  // area covered after the next layout pass will be added in drawRetained()
+  }
+
+  /** Starts a batch of GUI changes: calls to invalidate() are deferred until the matching
+   * endBatch(), so that building or changing large parts of the GUI (e.g., adding hundreds of
+   * menu items) only invalidates each affected component once and triggers a single layout pass.
+   * Batches can be nested.  Code running outside the animation thread should hold the lock on
+   * this TransparentGUI object for the whole batch. */
+  public synchronized void beginBatch() { batchDepth++; }
+  public synchronized void endBatch() {
+    if (batchDepth == 0) throw new IllegalStateException("endBatch() without beginBatch()");
+    if (--batchDepth > 0) return;
+    TComponent[] comps = batchInvalidated.toArray(new TComponent[batchInvalidated.size()]);
+    batchInvalidated.clear();
+    for (int i = 0; i < comps.length; i++)
+      comps[i].invalidate();
+    rootContainer.validate();
+  }
+  public boolean isBatching() { return batchDepth > 0; }
+  protected boolean deferInvalidate(TComponent comp) {
+    if (batchDepth == 0) return false;
+    batchInvalidated.add(comp);
+    return true;
+  }
+
+  /** Returns true if no component is animating or waiting for input to be processed, i.e., if
+   * the next frame would look exactly like the last one (as far as the GUI is concerned). */
+  public boolean isIdle() {
+    return !busy && componentAtMouseValid && dirtyComponents.isEmpty() && coalesced.isEmpty() && invokeLaterQueue.isEmpty() &&
+      deferredEvents.isEmpty() && rootContainer.isValid() &&
+      ((componentAtMouse == null) || (componentAtMouse.tooltip == null) || !componentAtMouse.tooltip.isPending());
+  }
+  public boolean isIdleMode() { return idleMode; }
+  /** In idle mode, the sketch is put to sleep with noLoop() as soon as the GUI is idle, and woken up
+   * with redraw() when a component calls repaint() or an input event arrives.  While components are
+   * animating, the sketch loops normally.  Sketches which animate themselves should call wakeUp()
+   * whenever they need another frame.  While the sketch sleeps, Processing delivers input events on
+   * the AWT thread; the GUI hands them to its components at the beginning of the next frame, so
+   * consuming them there has no effect on the sketch's own mousePressed() etc. */
+  public void setIdleMode(boolean b) {
+    idleMode = b;
+    if (!idleMode && sleeping) { sleeping = false; app.loop(); }
+  }
+  /** Signals that the next frame has to be drawn (the sketch is woken up if it is sleeping in idle mode). */
+  public void wakeUp() {
+    busy = true;
+    if (sleeping) app.redraw();
+  }
+  /** Calls comp.repaint() at the beginning of the first frame after the given time (in app.millis()).  Unlike
+   * calling repaint() in every frame, this lets the sketch sleep in idle mode until then (animation thread only). */
+  public void scheduleRepaint(TComponent comp, int millis) {
+    Integer t = scheduledRepaints.get(comp);
+    if ((t == null) || (millis < t.intValue())) scheduledRepaints.put(comp, Integer.valueOf(millis));
+  }
+  protected void runScheduledRepaints() {
+    if (scheduledRepaints.isEmpty()) return;
+    int t = app.millis();
+    for (Iterator<Map.Entry<TComponent,Integer>> it = scheduledRepaints.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<TComponent,Integer> entry = it.next();
+      if (entry.getValue().intValue() <= t) { it.remove(); entry.getKey().repaint(); }
+    }
+  }
+  /** Makes sure the sketch wakes up for the earliest scheduled repaint (called when going to sleep). */
+  protected void scheduleWakeUp() {
+    if (scheduledRepaints.isEmpty()) return;
+    int t = Integer.MAX_VALUE;
+    for (Integer ti : scheduledRepaints.values()) t = PApplet.min(t, ti.intValue());
+    if (wakeUpTimer == null) wakeUpTimer = new Timer("TransparentGUI wake-up", true);
+    if (wakeUpTask != null) wakeUpTask.cancel();
+    wakeUpTimer.schedule(wakeUpTask = new TimerTask() { public void run() { wakeUp(); } }, PApplet.max(0, t - app.millis()));
+  }
+
+  protected void addDirtyRegion(TComponent comp) {
+    if (!comp.isShowing()) return;
+    // add a bit of slack to account for borders and anti-aliasing
+    dirtyRegions.add(new TComponent.Rectangle(comp.getScreenX() - 3, comp.getScreenY() - 3, comp.bounds.width + 6, comp.bounds.height + 6));
+  }
+
+  protected void drawRetained() {
+    rootContainer.validate();
+    if ((canvas == null) || (canvas.width != app.width) || (canvas.height != app.height)) {
+      canvas = app.createGraphics(app.width, app.height, PApplet.JAVA2D);
+      canvas.beginDraw(); canvas.smooth(); canvas.endDraw();
+      dirtyRegions.add(new TComponent.Rectangle(0, 0, app.width, app.height));
+    }
+    for (int i = 0; i < dirtyComponents.size(); i++) {
+      dirtyComponents.get(i).dirty = false;
+      addDirtyRegion(dirtyComponents.get(i));
+    }
+    dirtyComponents.clear();
+    if (!dirtyRegions.isEmpty()) {
+      // snap dirty regions to pixels and merge overlapping ones until the remaining clusters are disjoint
+      Vector<TComponent.Rectangle> clusters = new Vector<TComponent.Rectangle>();
+      for (int i = 0; i < dirtyRegions.size(); i++) {
+        TComponent.Rectangle r = dirtyRegions.get(i);
+        float x0 = PApplet.max(0, PApplet.floor(r.x)), y0 = PApplet.max(0, PApplet.floor(r.y));
+        r.set(x0, y0, PApplet.min(canvas.width, PApplet.ceil(r.x + r.width)) - x0,
+                      PApplet.min(canvas.height, PApplet.ceil(r.y + r.height)) - y0);
+        if (r.isEmpty()) continue;
+        for (int j = 0; j < clusters.size(); j++)
+          if (clusters.get(j).intersects(r)) { r.add(clusters.remove(j)); j = -1; }  // r grew, so check all clusters again
+        clusters.add(r);
+      }
+      dirtyRegions.clear();  // components calling repaint() while being drawn will be redrawn in the next frame
+      if (clusters.size() > MAX_DIRTY_CLUSTERS) {  // traversing the tree that often costs more than drawing a bit more
+        for (int i = 1; i < clusters.size(); i++) clusters.get(0).add(clusters.get(i));
+        clusters.setSize(1);
+      }
+      if (!clusters.isEmpty()) {
+        canvas.beginDraw();
+        Graphics2D g2 = ((PGraphicsJava2D)canvas).g2;
+        for (int i = 0; i < clusters.size(); i++) {  // each cluster is cleared and redrawn with its own clip
+          TComponent.Rectangle r = clusters.get(i);
+          int ix = (int)r.x, iy = (int)r.y, iw = (int)r.width, ih = (int)r.height;
+          g2.setComposite(AlphaComposite.Clear);
+          g2.fillRect(ix, iy, iw, ih);
+          g2.setComposite(AlphaComposite.SrcOver);
+          g2.setClip(ix, iy, iw, ih);
+          drawClip.set(ix, iy, iw, ih);  // containers cull children outside of the cluster
+          rootContainer.draw(canvas);
+        }
+        g2.setClip(null);
+        canvas.endDraw();
+      }
+    }
+    app.g.imageMode(PApplet.CORNER);
+    app.g.noTint();
+    app.g.image(canvas, 0, 0);
+  }
+
+  public boolean isDisplayListMode() { return displayListMode; }
+  /** In display list mode, the draw operations of each window are recorded into TDisplayLists, which
+   * are replayed in every frame.  Windows and panels are split into segments (their background, each
+   * child, and their border, see TContainer.isSegmented), and a segment is only re-recorded after a
+   * component in it called repaint(), so in frames without changes no component is visited at all.
+   * (Retained mode takes precedence if both modes are enabled.) */
+  public void setDisplayListMode(boolean b) {
+    displayListMode = b;
+    if (!b) freeDisplayLists(rootContainer);
+  }
+  protected void freeDisplayLists(TComponent comp) {
+    comp.displayList = null; comp.displayListValid = false;
+    if (comp instanceof TContainer) {
+      TContainer cont = (TContainer)comp;
+      cont.borderDisplayList = null;
+      for (int i = 0; i < cont.getComponentCount(); i++) freeDisplayLists(cont.getComponent(i));
+    }
+  }
+  /** Marks the display list segments of comp and all its descendants for re-recording. */
+  protected void invalidateDisplayLists(TComponent comp) {
+    comp.displayListValid = false;
+    if (comp instanceof TContainer)
+      for (int i = 0; i < ((TContainer)comp).getComponentCount(); i++) invalidateDisplayLists(((TContainer)comp).getComponent(i));
+  }
+  public boolean isDisplayListReordering() { return displayListReordering; }
+  /** If enabled, recorded text operations are moved behind all other operations of their segment and
+   * grouped by font and fill color to minimize state changes.  Only use this if text does not overlap
+   * other components within a segment. */
+  public void setDisplayListReordering(boolean b) {
+    displayListReordering = b;
+    invalidateDisplayLists(rootContainer);
+  }
+
+  protected void drawDisplayLists() {
+    rootContainer.validate();
+    for (int i = 0; i < rootContainer.getComponentCount(); i++) {
+      if (!(rootContainer.getComponent(i) instanceof TWindow)) continue;
+      TWindow win = (TWindow)rootContainer.getComponent(i);
+      if (!win.isVisible() || !win.bounds.intersects(-3, -3, app.width + 6, app.height + 6)) continue;  // cull offscreen windows
+      drawSegments(win, 0, 0);
+    }
+  }
+  /** Replays the display list segments of comp, whose parent's origin is at (x, y) on screen, and re-records
+   * those that are invalid.  Segments are recorded relative to the component's location, so moving a
+   * component does not require re-recording it. */
+  protected void drawSegments(TComponent comp, float x, float y) {
+    x += comp.bounds.x; y += comp.bounds.y;
+    if ((comp instanceof TContainer) && ((TContainer)comp).isSegmented()) {
+      TContainer cont = (TContainer)comp;
+      if (!cont.valid) cont.validate();
+      if (!cont.displayListValid || (cont.displayList == null) || (cont.borderDisplayList == null)) {
+        cont.displayListValid = true;  // set this first so that a container which keeps animating can invalidate it while being drawn
+        cont.drawBackground(cont.displayList = beginSegment(cont.displayList, cont));
+        endSegment(cont.displayList);
+        cont.drawBorder(cont.borderDisplayList = beginSegment(cont.borderDisplayList, cont));
+        endSegment(cont.borderDisplayList);
+      }
+      cont.displayList.replay(app.g, x, y);
+      for (int i = 0; i < cont.getComponentCount(); i++)
+        if (cont.getComponent(i).isVisible()) drawSegments(cont.getComponent(i), x, y);
+      cont.borderDisplayList.replay(app.g, x, y);
+    } else {
+      if (!comp.displayListValid || (comp.displayList == null)) {
+        comp.displayListValid = true;
+        comp.draw(comp.displayList = beginSegment(comp.displayList, comp));
+        endSegment(comp.displayList);
+      }
+      comp.displayList.replay(app.g, x, y);
+    }
+  }
+  protected TDisplayList beginSegment(TDisplayList list, TComponent comp) {
+    if (list == null) list = new TDisplayList(this);
+    resetDrawClip();  // segments always hold the whole component, even if parts of it are currently offscreen
+    list.beginRecord(app.g);
+    list.translate(-comp.bounds.x, -comp.bounds.y);
+    return list;
+  }
+  protected void endSegment(TDisplayList list) {
+    list.endRecord();
+    if (displayListReordering) list.reorder();
+  }
+
   public void draw() {
     app.g.pushStyle();
     // The synchronized block here allows applications to synchronize
     // code fragments which might change the GUI layout etc.
     // Hope this works... concurrent stuff is weird and evil...
     synchronized (this) {
+      busy = false;  // components that call repaint() from now on need another frame
       visibleToolTip = null;
-      rootContainer.draw(app.g);
-      if (visibleToolTip != null)
+      if (retained) drawRetained();
+      else if (displayListMode) drawDisplayLists();
+      else { drawClip.set(0, 0, app.width, app.height); rootContainer.draw(app.g); }
+      // the component under the mouse might not have been drawn in this frame (retained or layer mode)
+      if ((componentAtMouse != null) && (componentAtMouse.tooltip != null))
+        componentAtMouse.tooltip.update();
+      if (visibleToolTip != null) {
+        drawClip.set(0, 0, app.width, app.height);
         visibleToolTip.draw(app.g);
+      }
+      if (idleMode) {
+        if (isIdle() && !sleeping) {
+          sleeping = true; app.noLoop();
+          tt = -1;  // do not count the time spent sleeping as animation time
+          if (!isIdle()) { sleeping = false; app.loop(); }  // woken up in between (wakeUp() saw sleeping == false)
+          else scheduleWakeUp();
+        } else if (!isIdle() && sleeping) {
+          sleeping = false; app.loop();
+        }
+      }
     }
     app.g.popStyle();
   }
 
   public void showToolTip(TToolTip tt) { visibleToolTip = tt; }
 
+  /** Returns the render state filter, bound to the given graphics object. */
+  public TRenderState renderState(PGraphics g) { return renderState.bind(g); }
+  public TRenderState getRenderState() { return renderState; }
+  public TTextMetrics getTextMetrics() { return textMetrics; }
+
   protected boolean checkFragileWindows(float x, float y) {
     boolean b = false;
     for (int i = 0; i < rootContainer.getComponentCount(); i++)
@@ -279,13 +782,22 @@ public class TransparentGUI extends TWindow {
   public void requestFocus(TComponent comp) {
     if ((comp != null) && (!comp.isFocusable() || !comp.isShowing() || !comp.isEnabled())) return;
     if (componentKeyFocus == comp) return;
-    if (componentKeyFocus != null) componentKeyFocus.handleFocusLost();
+    TWindow focusedWindow = getFocusedWindow(), activeWindow = getActiveWindow();
+    if (componentKeyFocus != null) { componentKeyFocus.handleFocusLost(); componentKeyFocus.repaint(); }
     componentKeyFocus = comp;
-    if (componentKeyFocus != null) componentKeyFocus.handleFocusGained();
+    if (componentKeyFocus != null) { componentKeyFocus.handleFocusGained(); componentKeyFocus.repaint(); }
+    // focused/active windows have a highlighted border
+    if (getFocusedWindow() != focusedWindow) {
+      if (focusedWindow != null) focusedWindow.repaint();
+      if (getFocusedWindow() != null) getFocusedWindow().repaint(); }
+    if (getActiveWindow() != activeWindow) {
+      if (activeWindow != null) activeWindow.repaint();
+      if (getActiveWindow() != null) getActiveWindow().repaint(); }
   }
 
   public void mouseEvent(MouseEvent e) {
-    int id = e.getID();
+    if (!isFrameThread()) {  // the sketch is sleeping, so Processing didn't queue the event for the animation thread
+      deferredEvents.offer(e); wakeUp(); return; }
     // general mouse handling
     switch (e.getID()) {
       case MouseEvent.MOUSE_PRESSED:
@@ -324,25 +836,108 @@ public class TransparentGUI extends TWindow {
   }
 
   public void keyEvent(KeyEvent e) {
+    if (isFrameThread()) processKeyEvent(e);
+    else { deferredEvents.offer(e); wakeUp(); }  // see mouseEvent
+    if (app.key == PApplet.ESC) app.key = 0;  // this makes sure PApplet.handleKeyEvent doesn't kill the application on VK_ESCAPE
+    // FIXME: the above line could confuse key event handlers called after this one which read PApplet.key
+  }
+  protected void processKeyEvent(KeyEvent e) {
     if (componentKeyFocus != null)  // give precedence to focused component
       componentKeyFocus.handleKeyEvent(e);
-    for (int i = 0; i < keyEventComponents.size(); i++) {
-      TComponent comp = keyEventComponents.get(i);
-      if (comp.isEnabled())
+    if (!e.isConsumed() && (e.getID() == KeyEvent.KEY_PRESSED)) {  // look up hot keys instead of asking every component
+      dispatchKeyEvent(hotKeyComponents.get(hotKey(e)), e);
+      if (!e.isConsumed()) dispatchKeyEvent(hotKeyCharComponents.get(Character.valueOf(e.getKeyChar())), e);
+    }
+    for (int i = 0; !e.isConsumed() && (i < keyEventComponents.size()); i++) {
+      TComponent comp = keyEventComponents.get(i).get();
+      if (comp == null) { keyEventComponents.remove(i--); continue; }  // component was garbage collected
+      if (comp.isAttached() && comp.isEnabled())
         comp.handleKeyEvent(e);
       if (e.isConsumed()) break;  // skip sending it to all other components if the event was consumed
     }
-    if (app.key == PApplet.ESC) app.key = 0;  // this makes sure PApplet.handleKeyEvent doesn't kill the application on VK_ESCAPE
-    // FIXME: the above line could confuse key event handlers called after this one which read PApplet.key
   }
 
-  public void registerForKeyEvents(TComponent comp) { keyEventComponents.add(comp); }
-  public void unregisterFromKeyEvents(TComponent comp) { keyEventComponents.remove(comp); }
+  /** Handles the input events that arrived while the sketch was sleeping, after pre() has updated the
+   * component under the mouse (each mouse event is hit-tested at its own position). */
+  protected void runDeferredEvents() {
+    if (deferredEvents.isEmpty()) return;
+    InputEvent e;
+    while ((e = deferredEvents.poll()) != null) {
+      if (e instanceof MouseEvent) {
+        MouseEvent me = (MouseEvent)e;
+        if ((me.getX() != app.mouseX) || (me.getY() != app.mouseY)) {
+          app.mouseX = me.getX(); app.mouseY = me.getY(); componentAtMouseValid = false; }
+        checkComponentAtMouse();
+        mouseEvent(me);
+      } else if (e instanceof KeyEvent)
+        processKeyEvent((KeyEvent)e);
+    }
+    checkComponentAtMouse();
+  }
+
+  /** Registers comp to receive all key events while it is attached to the GUI (see TComponent.addNotify).  The GUI
+   * only keeps a weak reference to comp.  Components that only need a hot key should use registerHotKey instead. */
+  public synchronized void registerForKeyEvents(TComponent comp) {
+    if (indexOfKeyEventComponent(comp) == -1) keyEventComponents.add(new WeakReference<TComponent>(comp)); }
+  public synchronized void unregisterFromKeyEvents(TComponent comp) {
+    int i = indexOfKeyEventComponent(comp);
+    if (i > -1) keyEventComponents.remove(i);
+  }
+  protected int indexOfKeyEventComponent(TComponent comp) {
+    for (int i = 0; i < keyEventComponents.size(); i++)
+      if (keyEventComponents.get(i).get() == comp) return i;
+    return -1;
+  }
+
+  protected void dispatchKeyEvent(Vector<TComponent> comps, KeyEvent e) {
+    if (comps == null) return;
+    for (int i = 0; i < comps.size(); i++) {
+      TComponent comp = comps.get(i);
+      if (comp.isEnabled())
+        comp.handleKeyEvent(e);
+      if (e.isConsumed()) break;
+    }
+  }
+
+  protected static Integer hotKey(int keyCode, int modifiers) { return Integer.valueOf((modifiers << 16) | (keyCode & 0xffff)); }
+  // hot keys are registered with the old-style modifier masks (the same ones TButton compares against),
+  // so the deprecated getModifiers() is what we have to match here
+  @SuppressWarnings("deprecation")
+  protected static Integer hotKey(KeyEvent e) { return hotKey(e.getKeyCode(), e.getModifiers()); }
+
+  /** Registers comp to receive KEY_PRESSED events with the given key code and modifiers (as returned by KeyEvent.getModifiers()). */
+  public synchronized void registerHotKey(TComponent comp, int keyCode, int modifiers) {
+    Integer key = hotKey(keyCode, modifiers);
+    Vector<TComponent> comps = hotKeyComponents.get(key);
+    if (comps == null) hotKeyComponents.put(key, comps = new Vector<TComponent>(1));
+    if (!comps.contains(comp)) comps.add(comp);
+  }
+  public synchronized void unregisterHotKey(TComponent comp, int keyCode, int modifiers) {
+    Integer key = hotKey(keyCode, modifiers);
+    Vector<TComponent> comps = hotKeyComponents.get(key);
+    if ((comps != null) && comps.remove(comp) && comps.isEmpty()) hotKeyComponents.remove(key);
+  }
+
+  /** Registers comp to receive KEY_PRESSED events with the given key char. */
+  public synchronized void registerHotKeyChar(TComponent comp, char c) {
+    Character key = Character.valueOf(c);
+    Vector<TComponent> comps = hotKeyCharComponents.get(key);
+    if (comps == null) hotKeyCharComponents.put(key, comps = new Vector<TComponent>(1));
+    if (!comps.contains(comp)) comps.add(comp);
+  }
+  public synchronized void unregisterHotKeyChar(TComponent comp, char c) {
+    Character key = Character.valueOf(c);
+    Vector<TComponent> comps = hotKeyCharComponents.get(key);
+    if ((comps != null) && comps.remove(comp) && comps.isEmpty()) hotKeyCharComponents.remove(key);
+  }
 
   public void size(int width, int height) {
     setBounds(0, 0, width, height);
     invalidateAll();
   }
 
-  public void dispose() {}
+  public void dispose() {
+    setDefaultExecutor(null);
+    if (wakeUpTimer != null) wakeUpTimer.cancel();
+  }
 }